@@ -0,0 +1,245 @@
+package InfinitEID.benchmark;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import InfinitEID.InfinitEIDApplet;
+
+/**
+ * Latency of InfinitEIDApplet.process() for the APDUs on the Web-eID hot path.
+ *
+ * Every benchmark runs against its own initialized SimulatedCard. Commands that
+ * consume a PIN validation (authenticate, performSignature, storeCertificate)
+ * verify the PIN in an invocation-level setup, so only the measured command is
+ * timed.
+ *
+ * Run with: java -jar target/benchmarks.jar -rf json -rff results.json
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppletBenchmark {
+	// sha256("fake document")
+	private final static byte[] HASH = new byte[] {
+			(byte) 0x99, (byte) 0x48, (byte) 0xc2, (byte) 0xdd, (byte) 0x1e, (byte) 0x27, (byte) 0xd9, (byte) 0x98,
+			(byte) 0x69, (byte) 0x15, (byte) 0x49, (byte) 0xab, (byte) 0xe0, (byte) 0xae, (byte) 0xf1, (byte) 0x1d,
+			(byte) 0xc3, (byte) 0x26, (byte) 0xc8, (byte) 0x1e, (byte) 0x86, (byte) 0x76, (byte) 0x93, (byte) 0x27,
+			(byte) 0x07, (byte) 0x0c, (byte) 0xc2, (byte) 0x2e, (byte) 0xc2, (byte) 0x39, (byte) 0x30, (byte) 0x5e };
+
+	// 8 hashes = 256 bytes, sent in a chain of two commands
+	private final static byte[] BATCH = new byte[8 * HASH.length];
+	static {
+		for (int offset = 0; offset < BATCH.length; offset += HASH.length) {
+			System.arraycopy(HASH, 0, BATCH, offset, HASH.length);
+		}
+	}
+
+	// 4 KiB document hashed on the card, sent in a chain of 17 commands
+	private final static byte[] DOCUMENT = new byte[4096];
+
+	private final static CommandAPDU INTERNAL_AUTHENTICATE = new CommandAPDU(0x00, 0x88, 0x00, 0x00, HASH, 256);
+	private final static CommandAPDU INTERNAL_AUTHENTICATE_WITH_PIN = new CommandAPDU(0x00, 0x88,
+			InfinitEIDApplet.INPUT_TEMPLATE_REFERENCE, 0x00, SimulatedCard.inputTemplate(SimulatedCard.AUTH_PIN, HASH),
+			256);
+	private final static CommandAPDU PERFORM_SIGNATURE = new CommandAPDU(0x00, 0x2A, 0x9E, 0x9A, HASH, 256);
+	private final static CommandAPDU PERFORM_SIGNATURE_WITH_PIN = new CommandAPDU(0x00, 0x2A, 0x9E, 0xAC,
+			SimulatedCard.inputTemplate(SimulatedCard.SIGN_PIN, HASH), 256);
+	private final static CommandAPDU SELECT_AUTH_CERT = new CommandAPDU(0x00, 0xA4, 0x02, 0x0C,
+			new byte[] { (byte) 0xAA, (byte) 0xCE });
+	private final static CommandAPDU READ_BINARY = new CommandAPDU(0x00, 0xB0, 0x00, 0x00, 255);
+	private final static CommandAPDU GET_AUTH_CERTIFICATE = new CommandAPDU(0x00, 0x04,
+			InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE, 0x00, 256);
+	// Extended Le=7FFF, whole certificate in one response (jCardSim reports
+	// Le=0000 as 0)
+	private final static CommandAPDU GET_AUTH_CERTIFICATE_EXTENDED = new CommandAPDU(0x00, 0x04,
+			InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE, 0x00, 0x7FFF);
+	private final static CommandAPDU GET_AUTH_CERTIFICATE_FINGERPRINT = new CommandAPDU(0x00, 0x04,
+			InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE, InfinitEIDApplet.CERTIFICATE_FINGERPRINT_REFERENCE, 256);
+	private final static CommandAPDU VERIFY_AUTH_PIN = new CommandAPDU(0x00, 0x20, 0x00,
+			InfinitEIDApplet.AUTH_PIN_REFERENCE, SimulatedCard.AUTH_PIN);
+	private final static CommandAPDU GET_CARD_STATUS = new CommandAPDU(0x00, 0xCA, 0x00,
+			InfinitEIDApplet.CARD_STATUS_P1P2, 256);
+	private final static CommandAPDU SET_SIGN_SIGNATURE_FORMAT_RAW = new CommandAPDU(0x00, 0xDA,
+			InfinitEIDApplet.SIGNATURE_FORMAT_REFERENCE, InfinitEIDApplet.SIGNING_KEYPAIR_REFERENCE,
+			new byte[] { InfinitEIDApplet.SIGNATURE_FORMAT_RAW });
+	private final static CommandAPDU ANNOUNCE_AUTH_CERT_UPDATE = new CommandAPDU(0x00, 0xDA,
+			InfinitEIDApplet.CERTIFICATE_UPDATE_REFERENCE, InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE,
+			new byte[] { 1 });
+
+	@State(Scope.Thread)
+	public static class Card {
+		SimulatedCard card;
+		byte[] sink = new byte[0x8000];
+		byte[] certificate = SimulatedCard.dummyCertificate(SimulatedCard.CERTIFICATE_LENGTH, 42);
+
+		@Setup(Level.Trial)
+		public void setUp() {
+			card = new SimulatedCard().initialize();
+			card.select();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AuthPinVerified extends Card {
+		@Setup(Level.Invocation)
+		public void verify() {
+			card.verifyPin(InfinitEIDApplet.AUTH_PIN_REFERENCE, SimulatedCard.AUTH_PIN);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SignPinVerified extends Card {
+		@Setup(Level.Invocation)
+		public void verify() {
+			card.verifyPin(InfinitEIDApplet.SING_PIN_REFERENCE, SimulatedCard.SIGN_PIN);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SignPinVerifiedRaw extends SignPinVerified {
+		@Override
+		@Setup(Level.Trial)
+		public void setUp() {
+			super.setUp();
+			card.verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, SimulatedCard.ADMIN_PIN);
+			card.expectOk(SET_SIGN_SIGNATURE_FORMAT_RAW);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AdminPinVerified extends Card {
+		@Setup(Level.Invocation)
+		public void verify() {
+			card.verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, SimulatedCard.ADMIN_PIN);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AuthCertSelected extends Card {
+		// JMH does not order setups of the same level, so extend the parent one
+		@Override
+		@Setup(Level.Trial)
+		public void setUp() {
+			super.setUp();
+			card.expectOk(SELECT_AUTH_CERT);
+		}
+	}
+
+	@Benchmark
+	public ResponseAPDU authenticate(AuthPinVerified state) {
+		return state.card.expectOk(INTERNAL_AUTHENTICATE);
+	}
+
+	// VERIFY and INTERNAL AUTHENTICATE in a single command
+	@Benchmark
+	public ResponseAPDU authenticateWithPin(Card state) {
+		return state.card.expectOk(INTERNAL_AUTHENTICATE_WITH_PIN);
+	}
+
+	@Benchmark
+	public ResponseAPDU performSignature(SignPinVerified state) {
+		return state.card.expectOk(PERFORM_SIGNATURE);
+	}
+
+	// r || s instead of DER
+	@Benchmark
+	public ResponseAPDU performSignatureRaw(SignPinVerifiedRaw state) {
+		return state.card.expectOk(PERFORM_SIGNATURE);
+	}
+
+	@Benchmark
+	public ResponseAPDU performSignatureWithPin(Card state) {
+		return state.card.expectOk(PERFORM_SIGNATURE_WITH_PIN);
+	}
+
+	@Benchmark
+	public int performBatchSignature(SignPinVerified state) {
+		ResponseAPDU response = state.card.transmitChained(0x2A, 0x9E, 0x9B, BATCH, 256);
+		return state.card.getResponses(response, state.sink);
+	}
+
+	@Benchmark
+	public ResponseAPDU performStreamingSignature(SignPinVerified state) {
+		return state.card.expectOkChained(0x2A, 0x9E, 0x80, DOCUMENT, 256);
+	}
+
+	@State(Scope.Thread)
+	public static class AuthCertUpdate extends AuthCertSelected {
+		// serial number and validity of a renewed certificate, a single
+		// announced write, so every invocation also stores the certificate
+		CommandAPDU update;
+
+		@Override
+		@Setup(Level.Trial)
+		public void setUp() {
+			super.setUp();
+			byte[] stored = SimulatedCard.dummyCertificate(SimulatedCard.CERTIFICATE_LENGTH,
+					InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE);
+			update = new CommandAPDU(0x00, 0xD6, 0x00, 0x0F, Arrays.copyOfRange(stored, 0x0F, 0x0F + 48));
+		}
+
+		@Setup(Level.Invocation)
+		public void announce() {
+			card.verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, SimulatedCard.ADMIN_PIN);
+			card.expectOk(ANNOUNCE_AUTH_CERT_UPDATE);
+		}
+	}
+
+	@Benchmark
+	public ResponseAPDU readBinary(AuthCertSelected state) {
+		return state.card.expectOk(READ_BINARY);
+	}
+
+	@Benchmark
+	public int getCertificate(Card state) {
+		return state.card.transmitWithGetResponse(GET_AUTH_CERTIFICATE, state.sink);
+	}
+
+	@Benchmark
+	public int getCertificateExtended(Card state) {
+		return state.card.transmitWithGetResponse(GET_AUTH_CERTIFICATE_EXTENDED, state.sink);
+	}
+
+	@Benchmark
+	public ResponseAPDU getCertificateFingerprint(Card state) {
+		return state.card.expectOk(GET_AUTH_CERTIFICATE_FINGERPRINT);
+	}
+
+	@Benchmark
+	public void storeCertificate(AdminPinVerified state) {
+		state.card.storeCertificate(InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE, state.certificate);
+	}
+
+	@Benchmark
+	public ResponseAPDU updateBinary(AuthCertUpdate state) {
+		return state.card.expectOk(state.update);
+	}
+
+	// public keys, PIN retries and certificate lengths in one response
+	@Benchmark
+	public ResponseAPDU getCardStatus(Card state) {
+		return state.card.expectOk(GET_CARD_STATUS);
+	}
+
+	@Benchmark
+	public ResponseAPDU verifyPin(Card state) {
+		return state.card.expectOk(VERIFY_AUTH_PIN);
+	}
+}
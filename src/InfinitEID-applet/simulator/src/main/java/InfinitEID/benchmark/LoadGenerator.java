@@ -0,0 +1,268 @@
+package InfinitEID.benchmark;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CommandAPDU;
+
+import InfinitEID.InfinitEIDApplet;
+
+/**
+ * Closed-loop load of many simulated cards, each running the Web-eID login
+ * flow back to back: SELECT applet, SELECT and READ BINARY of the auth
+ * certificate, VERIFY auth PIN, INTERNAL AUTHENTICATE and verification of the
+ * signature on the host.
+ *
+ * Every card is driven by its own thread, a virtual one when the JVM provides
+ * them (Java 21+), so hundreds of cards do not need hundreds of platform
+ * threads. Only logins started after the warmup are measured, the aggregate
+ * throughput and latency percentiles of the whole flow are printed at the end.
+ *
+ * Run with: java -cp target/benchmarks.jar InfinitEID.benchmark.LoadGenerator
+ * --cards 200 --duration 30
+ */
+public class LoadGenerator {
+	private final static CommandAPDU SELECT_APPLET = new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+			new byte[] { 0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08 });
+	private final static CommandAPDU SELECT_AUTH_CERT = new CommandAPDU(0x00, 0xA4, 0x02, 0x0C,
+			new byte[] { (byte) 0xAA, (byte) 0xCE });
+	private final static CommandAPDU VERIFY_AUTH_PIN = new CommandAPDU(0x00, 0x20, 0x00,
+			InfinitEIDApplet.AUTH_PIN_REFERENCE, SimulatedCard.AUTH_PIN);
+	private final static CommandAPDU GET_AUTH_PUBLIC_KEY = new CommandAPDU(0x00, 0x02,
+			InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE, InfinitEIDApplet.GET_PUBLIC_KEY_REFERENCE, 256);
+	// same block as infiniteidmanager.util.read_certificate with short APDUs
+	private final static int READ_BINARY_BLOCK = 256;
+	private final static double[] PERCENTILES = new double[] { 50, 90, 99, 99.9 };
+	private final static DecimalFormat PERCENTILE_FORMAT = new DecimalFormat("0.#");
+
+	private final int cards;
+	private final long warmupNanos;
+	private final long durationNanos;
+	// end of the warmup, set when all cards are initialized
+	private volatile long measurementStart;
+
+	public LoadGenerator(int cards, int warmupSeconds, int durationSeconds) {
+		this.cards = cards;
+		this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+		this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+	}
+
+	/**
+	 * Latencies (ns) of the logins a card completed in the measured interval.
+	 */
+	private static class Latencies {
+		long[] values = new long[1024];
+		int count;
+
+		void add(long latency) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, 2 * count);
+			}
+			values[count++] = latency;
+		}
+	}
+
+	public void run() throws Exception {
+		ExecutorService executor = newVirtualThreadPerTaskExecutor();
+		boolean virtual = executor != null;
+		if (!virtual) {
+			executor = Executors.newCachedThreadPool();
+		}
+		System.out.printf("[.] %d cards, %s threads, warmup %d s, measurement %d s%n", cards,
+				virtual ? "virtual" : "platform", TimeUnit.NANOSECONDS.toSeconds(warmupNanos),
+				TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+
+		CountDownLatch initialized = new CountDownLatch(cards);
+		CountDownLatch started = new CountDownLatch(1);
+		List<Future<Latencies>> futures = new ArrayList<>();
+		for (int i = 0; i < cards; i++) {
+			futures.add(executor.submit(() -> {
+				SimulatedCard card;
+				try {
+					card = new SimulatedCard().initialize();
+				} finally {
+					initialized.countDown();
+				}
+				started.await();
+				return runCard(card);
+			}));
+		}
+
+		initialized.await();
+		measurementStart = System.nanoTime() + warmupNanos;
+		System.out.println("[+] Cards initialized, running logins");
+		started.countDown();
+
+		Latencies all = new Latencies();
+		for (Future<Latencies> future : futures) {
+			Latencies latencies = future.get();
+			for (int i = 0; i < latencies.count; i++) {
+				all.add(latencies.values[i]);
+			}
+		}
+		executor.shutdown();
+		report(all);
+	}
+
+	private Latencies runCard(SimulatedCard card) throws GeneralSecurityException {
+		PublicKey key = toPublicKey(card.expectOk(GET_AUTH_PUBLIC_KEY).getData());
+		Signature verifier = Signature.getInstance("NONEwithECDSA");
+		MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		byte[] certificate = new byte[0x8000];
+		Latencies latencies = new Latencies();
+		long end = measurementStart + durationNanos;
+
+		for (long login = 0;; login++) {
+			long start = System.nanoTime();
+			if (start >= end) {
+				return latencies;
+			}
+			// challenge differs for every login, as the nonce from the server
+			byte[] hash = sha256.digest(ByteBuffer.allocate(16).putLong(card.hashCode()).putLong(login).array());
+			login(card, certificate, hash, verifier, key);
+			if (start >= measurementStart) {
+				latencies.add(System.nanoTime() - start);
+			}
+		}
+	}
+
+	private static void login(SimulatedCard card, byte[] certificate, byte[] hash, Signature verifier,
+			PublicKey key) throws GeneralSecurityException {
+		card.expectOk(SELECT_APPLET);
+		card.expectOk(SELECT_AUTH_CERT);
+		readCertificate(card, certificate);
+		card.expectOk(VERIFY_AUTH_PIN);
+		byte[] signature = card.expectOk(new CommandAPDU(0x00, 0x88, 0x00, 0x00, hash, 256)).getData();
+
+		verifier.initVerify(key);
+		verifier.update(hash);
+		if (!verifier.verify(signature)) {
+			throw new IllegalStateException("Invalid signature of the auth key");
+		}
+	}
+
+	/**
+	 * READ BINARY until the length from the DER header of the first block is
+	 * read, the same way as infiniteidmanager.util.read_certificate.
+	 */
+	private static void readCertificate(SimulatedCard card, byte[] certificate) {
+		int length = -1;
+		int read = 0;
+		while (length < 0 || read < length) {
+			int le = length < 0 ? READ_BINARY_BLOCK : Math.min(READ_BINARY_BLOCK, length - read);
+			byte[] data = card.expectOk(new CommandAPDU(0x00, 0xB0, read >> 8, read & 0xFF, le)).getData();
+			System.arraycopy(data, 0, certificate, read, data.length);
+			read += data.length;
+			if (length < 0) {
+				length = derLength(certificate);
+			}
+		}
+	}
+
+	private static int derLength(byte[] der) {
+		if ((der[1] & 0x80) == 0) {
+			return der[1] + 2;
+		}
+		int size = der[1] & 0x7F;
+		int length = 0;
+		for (int i = 0; i < size; i++) {
+			length = (length << 8) | (der[2 + i] & 0xFF);
+		}
+		return length + 2 + size;
+	}
+
+	/**
+	 * @param w Uncompressed P-256 point as returned by GET PUBLIC KEY.
+	 */
+	private static PublicKey toPublicKey(byte[] w) throws GeneralSecurityException {
+		AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+		parameters.init(new ECGenParameterSpec("secp256r1"));
+		ECPoint point = new ECPoint(new BigInteger(1, Arrays.copyOfRange(w, 1, 33)),
+				new BigInteger(1, Arrays.copyOfRange(w, 33, 65)));
+		return KeyFactory.getInstance("EC")
+				.generatePublic(new ECPublicKeySpec(point, parameters.getParameterSpec(ECParameterSpec.class)));
+	}
+
+	private void report(Latencies all) {
+		long[] sorted = Arrays.copyOf(all.values, all.count);
+		Arrays.sort(sorted);
+		double seconds = durationNanos / 1e9;
+		System.out.printf("[+] %d logins in %.1f s, %.1f logins/s (%.2f per card)%n", sorted.length, seconds,
+				sorted.length / seconds, sorted.length / seconds / cards);
+		if (sorted.length == 0) {
+			return;
+		}
+		StringBuilder line = new StringBuilder("[+] latency ms:");
+		for (double percentile : PERCENTILES) {
+			int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+			line.append(String.format(" p%s %.3f", PERCENTILE_FORMAT.format(percentile),
+					sorted[Math.max(index, 0)] / 1e6));
+		}
+		line.append(String.format(" max %.3f", sorted[sorted.length - 1] / 1e6));
+		System.out.println(line);
+	}
+
+	/**
+	 * Looked up at runtime, so the module still builds for Java 11.
+	 *
+	 * @return Executors.newVirtualThreadPerTaskExecutor() on Java 21+, null on
+	 * older JVMs
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: LoadGenerator [--cards N] [--warmup seconds] [--duration seconds]");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int cards = 100;
+		int warmup = 5;
+		int duration = 30;
+		for (int i = 0; i < args.length; i += 2) {
+			if (i + 1 >= args.length) {
+				usage();
+			}
+			int value = Integer.parseInt(args[i + 1]);
+			switch (args[i]) {
+			case "--cards":
+				cards = value;
+				break;
+			case "--warmup":
+				warmup = value;
+				break;
+			case "--duration":
+				duration = value;
+				break;
+			default:
+				usage();
+			}
+		}
+		new LoadGenerator(cards, warmup, duration).run();
+	}
+}
@@ -0,0 +1,275 @@
+package InfinitEID.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+
+import InfinitEID.InfinitEIDApplet;
+import javacard.framework.AID;
+
+/**
+ * InfinitEID applet installed into jCardSim and initialized the same way as
+ * infiniteidmanager.init does it for a physical card (PINs, keypairs,
+ * certificates).
+ */
+public class SimulatedCard {
+	public final static String APPLET_AID = "0102030405060708";
+
+	public final static byte[] ADMIN_PIN = pin(9, 8, 7, 6, 5, 4);
+	public final static byte[] AUTH_PIN = pin(1, 2, 3, 4);
+	public final static byte[] SIGN_PIN = pin(1, 2, 3, 4, 5, 6);
+
+	// default cert with es256 is 1033 bytes
+	public final static int CERTIFICATE_LENGTH = 1033;
+
+	private final CardSimulator simulator;
+	private final AID aid;
+	// RAM_BUF_SIZE of the card status, read once
+	private int ramBufSize;
+
+	public SimulatedCard() {
+		this(new byte[0]);
+	}
+
+	/**
+	 * @param parameters The applet specific install parameters (TLVs, see
+	 * InfinitEIDApplet.TAG_RAM_BUF_SIZE), empty for the defaults.
+	 */
+	public SimulatedCard(byte[] parameters) {
+		simulator = new CardSimulator();
+		aid = AIDUtil.create(APPLET_AID);
+		if (parameters.length == 0) {
+			simulator.installApplet(aid, InfinitEIDApplet.class);
+		} else {
+			// "Li AID Lc control info La applet data" as passed by the card manager
+			byte[] aid_bytes = new byte[16];
+			aid_bytes = Arrays.copyOf(aid_bytes, aid.getBytes(aid_bytes, (short) 0));
+			byte[] install = new byte[3 + aid_bytes.length + parameters.length];
+			install[0] = (byte) aid_bytes.length;
+			System.arraycopy(aid_bytes, 0, install, 1, aid_bytes.length);
+			install[1 + aid_bytes.length] = 0;
+			install[2 + aid_bytes.length] = (byte) parameters.length;
+			System.arraycopy(parameters, 0, install, 3 + aid_bytes.length, parameters.length);
+			simulator.installApplet(aid, InfinitEIDApplet.class, install, (short) 0, (byte) install.length);
+		}
+		select();
+	}
+
+	/**
+	 * Same sequence as infiniteidmanager.init: set all PINs, generate both
+	 * keypairs and store a certificate for each of them.
+	 */
+	public SimulatedCard initialize() {
+		setPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, ADMIN_PIN);
+		verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, ADMIN_PIN);
+		setPin(InfinitEIDApplet.AUTH_PIN_REFERENCE, AUTH_PIN);
+		verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, ADMIN_PIN);
+		setPin(InfinitEIDApplet.SING_PIN_REFERENCE, SIGN_PIN);
+
+		for (byte reference : new byte[] { InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE,
+				InfinitEIDApplet.SIGNING_KEYPAIR_REFERENCE }) {
+			verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, ADMIN_PIN);
+			expectOk(new CommandAPDU(0x00, 0x01, reference, InfinitEIDApplet.KEYPAIR_GENERATION_REFERENCE));
+			verifyPin(InfinitEIDApplet.ADMIN_PIN_REFERENCE, ADMIN_PIN);
+			storeCertificate(reference, dummyCertificate(CERTIFICATE_LENGTH, reference));
+		}
+		return this;
+	}
+
+	public void select() {
+		simulator.selectApplet(aid);
+	}
+
+	public ResponseAPDU transmit(CommandAPDU command) {
+		return simulator.transmitCommand(command);
+	}
+
+	/**
+	 * Raw command APDU as received from a reader, the response includes the
+	 * status word.
+	 */
+	public byte[] transmit(byte[] command) {
+		return simulator.transmitCommand(command);
+	}
+
+	public byte[] getATR() {
+		return simulator.getATR();
+	}
+
+	/**
+	 * Card reset, clears the transient memory and deselects the applet.
+	 */
+	public void reset() {
+		simulator.reset();
+	}
+
+	public ResponseAPDU expectOk(CommandAPDU command) {
+		ResponseAPDU response = transmit(command);
+		if (response.getSW() != 0x9000) {
+			throw new IllegalStateException(String.format("SW %04X for APDU %s", response.getSW(),
+					toHex(command.getBytes())));
+		}
+		return response;
+	}
+
+	public void setPin(byte reference, byte[] pin) {
+		expectOk(new CommandAPDU(0x00, 0x22, 0x00, reference, pin));
+	}
+
+	public ResponseAPDU verifyPin(byte reference, byte[] pin) {
+		return expectOk(new CommandAPDU(0x00, 0x20, 0x00, reference, pin));
+	}
+
+	/**
+	 * STORE CERTIFICATE using command chaining in 255-byte blocks, the same way
+	 * as infiniteidmanager.connector.send does it. A certificate longer than
+	 * the RAM buffer of the card is written by announced UPDATE BINARY commands
+	 * instead, as infiniteidmanager.util.store_certificate does it.
+	 */
+	public void storeCertificate(byte reference, byte[] certificate) {
+		if (certificate.length <= getRamBufSize()) {
+			expectOkChained(0x03, reference, 0x00, certificate, 0);
+			return;
+		}
+
+		expectOk(new CommandAPDU(0x00, 0xDA, InfinitEIDApplet.CERTIFICATE_UPDATE_REFERENCE, reference,
+				new byte[] { (byte) ((certificate.length + 254) / 255) }));
+		expectOk(new CommandAPDU(0x00, 0xA4, 0x02, 0x0C, reference == InfinitEIDApplet.AUTH_KEYPAIR_REFERENCE
+				? new byte[] { (byte) 0xAA, (byte) 0xCE }
+				: new byte[] { (byte) 0xDD, (byte) 0xCE }));
+		for (int offset = 0; offset < certificate.length; offset += 255) {
+			expectOk(new CommandAPDU(0x00, 0xD6, offset >> 8, offset & 0xFF,
+					Arrays.copyOfRange(certificate, offset, Math.min(offset + 255, certificate.length))));
+		}
+	}
+
+	/**
+	 * @return the RAM_BUF_SIZE of the card status, the most data a command can
+	 * send
+	 */
+	public int getRamBufSize() {
+		if (ramBufSize == 0) {
+			byte[] status = expectOk(new CommandAPDU(0x00, 0xCA, 0x00, InfinitEIDApplet.CARD_STATUS_P1P2, 256))
+					.getData();
+			int offset = 0;
+			while (status[offset] != InfinitEIDApplet.STATUS_TAG_RAM_BUF_SIZE) {
+				offset += 2 + (status[offset + 1] & 0xFF);
+			}
+			ramBufSize = ((status[offset + 2] & 0xFF) << 8) | (status[offset + 3] & 0xFF);
+		}
+		return ramBufSize;
+	}
+
+	/**
+	 * Send the data using command chaining in 255-byte blocks.
+	 *
+	 * @return the response to the last command of the chain
+	 */
+	public ResponseAPDU transmitChained(int ins, int p1, int p2, byte[] data, int ne) {
+		int offset = 0;
+		for (; data.length - offset > 255; offset += 255) {
+			expectOk(new CommandAPDU(0x10, ins, p1, p2, Arrays.copyOfRange(data, offset, offset + 255)));
+		}
+		return transmit(new CommandAPDU(0x00, ins, p1, p2, Arrays.copyOfRange(data, offset, data.length), ne));
+	}
+
+	/**
+	 * Send the data using command chaining like transmitChained, the last
+	 * command has to succeed as well.
+	 *
+	 * @return the response to the last command of the chain
+	 */
+	public ResponseAPDU expectOkChained(int ins, int p1, int p2, byte[] data, int ne) {
+		ResponseAPDU response = transmitChained(ins, p1, p2, data, ne);
+		if (response.getSW() != 0x9000) {
+			throw new IllegalStateException(String.format("SW %04X for the last command of INS %02X", response.getSW(),
+					ins));
+		}
+		return response;
+	}
+
+	/**
+	 * Send the command and fetch the rest of the response with GET RESPONSE
+	 * while the card answers 61xx.
+	 *
+	 * @return the number of APDUs exchanged
+	 */
+	public int transmitWithGetResponse(CommandAPDU command, byte[] sink) {
+		return getResponses(transmit(command), sink);
+	}
+
+	/**
+	 * Fetch the rest of the response with GET RESPONSE while the card answers
+	 * 61xx.
+	 *
+	 * @return the number of APDUs exchanged, including the one that returned
+	 * response
+	 */
+	public int getResponses(ResponseAPDU response, byte[] sink) {
+		int exchanges = 1;
+		int received = 0;
+		while (true) {
+			byte[] data = response.getData();
+			System.arraycopy(data, 0, sink, received, data.length);
+			received += data.length;
+			if (response.getSW1() != 0x61) {
+				break;
+			}
+			response = transmit(new CommandAPDU(0x00, 0xC0, 0x00, 0x00, response.getSW2() == 0 ? 256 : response.getSW2()));
+			exchanges++;
+		}
+		if (response.getSW() != 0x9000) {
+			throw new IllegalStateException(String.format("SW %04X", response.getSW()));
+		}
+		return exchanges;
+	}
+
+	/**
+	 * Input template of the combined VERIFY and sign commands.
+	 */
+	public static byte[] inputTemplate(byte[] pin, byte[] hash) {
+		byte[] template = new byte[4 + pin.length + hash.length];
+		template[0] = InfinitEIDApplet.TAG_PIN;
+		template[1] = (byte) pin.length;
+		System.arraycopy(pin, 0, template, 2, pin.length);
+		template[2 + pin.length] = InfinitEIDApplet.TAG_HASH;
+		template[3 + pin.length] = (byte) hash.length;
+		System.arraycopy(hash, 0, template, 4 + pin.length, hash.length);
+		return template;
+	}
+
+	/**
+	 * DER SEQUENCE header with random content, long enough to exercise the same
+	 * chaining paths as a real ES256 certificate.
+	 */
+	public static byte[] dummyCertificate(int length, long seed) {
+		byte[] certificate = new byte[length];
+		new Random(seed).nextBytes(certificate);
+		certificate[0] = (byte) 0x30;
+		certificate[1] = (byte) 0x82;
+		certificate[2] = (byte) ((length - 4) >> 8);
+		certificate[3] = (byte) (length - 4);
+		return certificate;
+	}
+
+	private static byte[] pin(int... digits) {
+		byte[] pin = new byte[digits.length];
+		for (int i = 0; i < digits.length; i++) {
+			pin[i] = (byte) ('0' + digits[i]);
+		}
+		return pin;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder builder = new StringBuilder();
+		for (byte b : bytes) {
+			builder.append(String.format("%02X", b));
+		}
+		return builder.toString();
+	}
+}
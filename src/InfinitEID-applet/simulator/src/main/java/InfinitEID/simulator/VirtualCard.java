@@ -0,0 +1,235 @@
+package InfinitEID.simulator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import InfinitEID.benchmark.SimulatedCard;
+
+/**
+ * InfinitEID applet in jCardSim exposed as a card in a reader, so the
+ * management tool, its tests and benchmarks run without hardware.
+ *
+ * Both modes use the framing of vsmartcard's virtual PC/SC reader (vpcd):
+ * every message is prefixed by its length as two big-endian bytes, a message
+ * of length 1 is a control command (power off, power on, reset, get ATR),
+ * anything longer is a command APDU answered by the response APDU.
+ *
+ * <ul>
+ * <li>--listen [port]: accepts clients on the loopback interface
+ * (infiniteidmanager with CARD_BACKEND: simulator), all of them share the same
+ * card.</li>
+ * <li>--vpcd [host:]port: connects to a running vpcd, the card then appears
+ * in a PC/SC reader to every application (pyscard, Web-eID).</li>
+ * </ul>
+ *
+ * The applet is installed with no PINs, keys or certificates, initialize it
+ * the same way as a physical card. --params sets the install parameters (hex
+ * encoded TLVs, see bin/install_params).
+ *
+ * Run with: java -cp target/benchmarks.jar InfinitEID.simulator.VirtualCard
+ * --listen
+ */
+public class VirtualCard {
+	public final static int DEFAULT_LISTEN_PORT = 35964;
+	public final static int DEFAULT_VPCD_PORT = 35963;
+
+	// vpcd control commands
+	private final static byte POWER_OFF = 0;
+	private final static byte POWER_ON = 1;
+	private final static byte RESET = 2;
+	private final static byte GET_ATR = 4;
+
+	// jCardSim's short APDU buffer holds 260 bytes, one less than a command
+	// with 255 bytes of data and Le, such commands are passed as extended
+	private final static int SHORT_CASE_4_MAX_LENGTH = 5 + 255 + 1;
+
+	// SW_UNKNOWN, for APDUs jCardSim fails to parse
+	private final static byte[] UNKNOWN_ERROR = new byte[] { (byte) 0x6F, (byte) 0x00 };
+
+	private final SimulatedCard card;
+
+	/**
+	 * @param parameters The applet specific install parameters, empty for the
+	 * defaults.
+	 */
+	public VirtualCard(byte[] parameters) {
+		card = new SimulatedCard(parameters);
+		card.reset();
+	}
+
+	/**
+	 * Accept clients until the process is killed, every client is served by
+	 * its own thread.
+	 */
+	public void listen(int port) throws IOException {
+		try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+			System.out.println("[+] Listening on " + server.getLocalSocketAddress());
+			while (true) {
+				Socket client = server.accept();
+				Thread thread = new Thread(() -> serveAndClose(client), "client " + client.getPort());
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+	}
+
+	/**
+	 * Connect to vpcd and serve it until it closes the connection.
+	 */
+	public void connect(String host, int port) throws IOException {
+		try (Socket socket = new Socket(host, port)) {
+			System.out.println("[+] Connected to vpcd at " + socket.getRemoteSocketAddress());
+			serve(socket);
+		}
+	}
+
+	private void serveAndClose(Socket client) {
+		try (Socket socket = client) {
+			serve(socket);
+		} catch (IOException e) {
+			System.err.println("[!] " + Thread.currentThread().getName() + ": " + e);
+		}
+	}
+
+	private void serve(Socket socket) throws IOException {
+		socket.setTcpNoDelay(true);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		while (true) {
+			byte[] message;
+			try {
+				message = new byte[in.readUnsignedShort()];
+			} catch (EOFException e) {
+				return;
+			}
+			in.readFully(message);
+
+			byte[] response = message.length == 1 ? control(message[0]) : transmit(message);
+			if (response != null) {
+				out.writeShort(response.length);
+				out.write(response);
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * @return the ATR for GET_ATR, null for the commands vpcd expects no
+	 * answer to
+	 */
+	private byte[] control(byte command) {
+		synchronized (card) {
+			switch (command) {
+			case GET_ATR:
+				return card.getATR();
+			case POWER_OFF:
+			case RESET:
+				card.reset();
+				return null;
+			case POWER_ON:
+			default:
+				return null;
+			}
+		}
+	}
+
+	private byte[] transmit(byte[] command) {
+		if (command.length == SHORT_CASE_4_MAX_LENGTH && (command[4] & 0xFF) == 255) {
+			command = toExtended(command);
+		}
+		synchronized (card) {
+			try {
+				return card.transmit(command);
+			} catch (RuntimeException e) {
+				System.err.println("[!] " + e);
+				return UNKNOWN_ERROR;
+			}
+		}
+	}
+
+	/**
+	 * Same command with extended Lc and Le, the applet sees the same data and
+	 * Le.
+	 */
+	private static byte[] toExtended(byte[] command) {
+		int le = command[command.length - 1] & 0xFF;
+		byte[] extended = new byte[4 + 3 + 255 + 2];
+		System.arraycopy(command, 0, extended, 0, 4);
+		extended[6] = (byte) 255;
+		System.arraycopy(command, 5, extended, 7, 255);
+		extended[extended.length - 2] = (byte) (le == 0 ? 1 : 0);
+		extended[extended.length - 1] = (byte) le;
+		return extended;
+	}
+
+	private static byte[] parseHex(String hex) {
+		if (hex.length() % 2 != 0) {
+			throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static void usage() {
+		System.err.println("Usage: VirtualCard [--params <hex>] (--listen [port] | --vpcd [host:]port)");
+		System.err.println("  --listen  accept clients on localhost, default port " + DEFAULT_LISTEN_PORT);
+		System.err.println("  --vpcd    connect to vsmartcard vpcd, default localhost:" + DEFAULT_VPCD_PORT);
+		System.err.println("  --params  applet install parameters (hex encoded TLVs)");
+		System.exit(2);
+	}
+
+	public static void main(String[] args) throws IOException {
+		byte[] parameters = new byte[0];
+		String mode = null;
+		String address = null;
+		for (int i = 0; i < args.length; i++) {
+			String next = i + 1 < args.length && !args[i + 1].startsWith("--") ? args[i + 1] : null;
+			switch (args[i]) {
+			case "--params":
+				if (next == null) {
+					usage();
+				}
+				parameters = parseHex(next);
+				i++;
+				break;
+			case "--listen":
+			case "--vpcd":
+				mode = args[i];
+				address = next;
+				i += next == null ? 0 : 1;
+				break;
+			default:
+				usage();
+			}
+		}
+		if (mode == null) {
+			usage();
+		}
+
+		VirtualCard card = new VirtualCard(parameters);
+		if (mode.equals("--listen")) {
+			card.listen(address == null ? DEFAULT_LISTEN_PORT : Integer.parseInt(address));
+		} else {
+			String host = "localhost";
+			int port = DEFAULT_VPCD_PORT;
+			if (address != null) {
+				int colon = address.lastIndexOf(':');
+				if (colon >= 0) {
+					host = address.substring(0, colon);
+				}
+				port = Integer.parseInt(address.substring(colon + 1));
+			}
+			card.connect(host, port);
+		}
+	}
+}
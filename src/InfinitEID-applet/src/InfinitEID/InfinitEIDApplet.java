@@ -26,39 +26,167 @@ import javacard.framework.Applet;
 import javacard.framework.ISO7816;
 import javacard.framework.ISOException;
 import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
 import javacard.framework.OwnerPIN;
 import javacard.framework.Util;
 import javacard.security.ECPublicKey;
 import javacard.security.KeyBuilder;
 import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
 import javacard.security.Signature;
 import javacardx.apdu.ExtendedLength;
 
-public class InfinitEIDApplet extends Applet implements ExtendedLength {
+public class InfinitEIDApplet extends Applet implements ExtendedLength, MultiSelectable {
 	// References
 	public final static byte AUTH_KEYPAIR_REFERENCE = (byte) 0x01;
 	public final static byte SIGNING_KEYPAIR_REFERENCE = (byte) 0x02;
 	public final static byte KEYPAIR_GENERATION_REFERENCE = (byte) 0x08;
 	public final static byte GET_PUBLIC_KEY_REFERENCE = (byte) 0x09;
+	// GET CERTIFICATE P2: return the SHA-256 of the certificate instead of the
+	// certificate itself, so the host can use a cached copy
+	public final static byte CERTIFICATE_FINGERPRINT_REFERENCE = (byte) 0x0A;
+	public final static short FINGERPRINT_LENGTH = (short) 32;
+	// PUT DATA P1: set the format of the signatures of the key slot in P2,
+	// data is SIGNATURE_FORMAT_DER or SIGNATURE_FORMAT_RAW
+	public final static byte SIGNATURE_FORMAT_REFERENCE = (byte) 0x0B;
+	// PUT DATA P1: announce the number of UPDATE BINARY commands that rewrite
+	// the certificate in P2 (0x01 auth, 0x02 sign), data is one byte 1 - 255
+	public final static byte CERTIFICATE_UPDATE_REFERENCE = (byte) 0x0C;
+	// SEQUENCE tag and up to 3 length bytes of a DER encoded certificate
+	private final static short DER_HEADER_MAX_LENGTH = (short) 4;
+
+	// Key slots
+	// A key reference is the slot index + 1. AUTH_KEYPAIR_REFERENCE and
+	// SIGNING_KEYPAIR_REFERENCE are the first two slots, the remaining ones are
+	// additional authentication keys (e.g. one per relying party) bound to the
+	// auth PIN unless GENERATE KEYPAIR binds them to another PIN.
+	public final static byte KEY_SLOT_COUNT = (byte) 4;
+	public final static byte MAX_KEY_SLOT_COUNT = (byte) 16;
+
+	// PERFORM SIGNATURE
+	// P1P2 = 9E9A: data is one precomputed hash
+	// P1P2 = 9E9B: data is a concatenation of precomputed hashes (chained or
+	// extended APDU), the response is a concatenation of their DER signatures
+	// P1P2 = 9EAC: data is an input template (see below)
+	// P1P2 = 9E80: data is the document itself, hashed on the card while it
+	// is received (chained or extended APDUs of any total length)
+	public final static short SIGNATURE_P1P2 = (short) 0x9E9A;
+	public final static short BATCH_SIGNATURE_P1P2 = (short) 0x9E9B;
+	public final static short VERIFY_AND_SIGNATURE_P1P2 = (short) 0x9EAC;
+	public final static short STREAMING_SIGNATURE_P1P2 = (short) 0x9E80;
+	public final static short HASH_LENGTH = (short) 32;
+	// DER encoded ECDSA signature over P-256
+	public final static short MAX_SIGNATURE_LENGTH = (short) 72;
+
+	// Signature formats of a key slot. DER (default) is the SEQUENCE of the
+	// two INTEGERs as returned by Signature, RAW is the fixed length r || s
+	// (as in JWS/WebAuthn), both values left-padded to SIGNATURE_VALUE_LENGTH.
+	public final static byte SIGNATURE_FORMAT_DER = (byte) 0x00;
+	public final static byte SIGNATURE_FORMAT_RAW = (byte) 0x01;
+	public final static short RAW_SIGNATURE_LENGTH = (short) 64;
+	private final static short SIGNATURE_VALUE_LENGTH = (short) 32;
+
+	// Input template of INTERNAL AUTHENTICATE (P1 = AC) and PERFORM SIGNATURE
+	// (P1P2 = 9EAC): the PIN of the key and the hash, "81 Lpin PIN 90 Lhash
+	// HASH". The PIN is verified, the hash signed and the PIN reset in a single
+	// command.
+	public final static byte INPUT_TEMPLATE_REFERENCE = (byte) 0xAC;
+	public final static byte TAG_PIN = (byte) 0x81;
+	public final static byte TAG_HASH = (byte) 0x90;
 
 	// PIN
 	public final static byte AUTH_PIN_RETRIES_LIMIT = (byte) 3;
 	public final static byte SIGN_PIN_RETRIES_LIMIT = (byte) 3;
 	public final static byte ADMIN_PIN_RETRIES_LIMIT = (byte) 1;
 	public final static byte PIN_MAX_SIZE = (byte) 12;
+	// 63Cx has room for 15 retries
+	public final static byte MAX_PIN_RETRIES_LIMIT = (byte) 15;
 	public final static byte AUTH_PIN_REFERENCE = (byte) 0x01;
 	public final static byte SING_PIN_REFERENCE = (byte) 0x02;
 	public final static byte ADMIN_PIN_REFERENCE = (byte) 0x03;
 
+	// Major and minor version, reported in the card status
+	public final static short APPLET_VERSION = (short) 0x0100;
+
+	// GET DATA P1P2 of the card status: everything the host reads before the
+	// first operation in one response, "C0 02 VERSION C1 L W(auth) C2 L
+	// W(sign) C3 06 PIN_RETRIES C4 04 CERTIFICATE_LENGTHS C5 02 RAM_BUF_SIZE".
+	// PIN_RETRIES are the tries remaining and limit of the auth, sign and
+	// admin PIN (as returned by PIN RETRIES LEFT), CERTIFICATE_LENGTHS the
+	// lengths of the auth and sign certificates (0 = none stored),
+	// RAM_BUF_SIZE the most data a command can send (ram_buf install
+	// parameter). A public key that has not been generated is empty.
+	public final static short CARD_STATUS_P1P2 = (short) 0x00FF;
+	public final static byte STATUS_TAG_VERSION = (byte) 0xC0;
+	public final static byte STATUS_TAG_AUTH_PUBLIC_KEY = (byte) 0xC1;
+	public final static byte STATUS_TAG_SIGN_PUBLIC_KEY = (byte) 0xC2;
+	public final static byte STATUS_TAG_PIN_RETRIES = (byte) 0xC3;
+	public final static byte STATUS_TAG_CERTIFICATE_LENGTHS = (byte) 0xC4;
+	public final static byte STATUS_TAG_RAM_BUF_SIZE = (byte) 0xC5;
+
+	// GET DATA P1P2 of the operation counters, "D0 L SIGNATURES D1 04
+	// PIN_FAILURES D2 04 CERTIFICATE_READS D3 04 GET_RESPONSE_CHAINS D4 04
+	// TRANSACTION_ABORTS D5 04 SESSION_APDUS". Every counter is a 4 byte
+	// unsigned integer, SIGNATURES has one per key slot in the order of the
+	// key references. SESSION_APDUS counts the commands since the card reset,
+	// the others are persistent.
+	public final static short COUNTERS_P1P2 = (short) 0x00FE;
+	public final static byte COUNTERS_TAG_SIGNATURES = (byte) 0xD0;
+	// D1 - D4 in the order of the COUNTER_* indexes
+	public final static byte COUNTERS_TAG_PIN_FAILURES = (byte) 0xD1;
+	public final static byte COUNTERS_TAG_SESSION_APDUS = (byte) 0xD5;
+
 	// // Applet state
 	// public final static short STATE_INIT = (short) 0;
 	// public final static short STATE_ISSUED = (short) 1;
 
+	// Logical channels
+	// The applet can be selected on the basic and the first three supplementary
+	// channels at once. The selected file, command chaining and GET RESPONSE
+	// state is kept per channel, ram_buf is shared, so a channel cannot use it
+	// while another channel has a chain or a response pending in it. A
+	// certificate cannot be written while a channel has a response pending in
+	// it either.
+	// PINs are reset when the applet is selected on its first channel and
+	// deselected from its last one.
+	public final static byte MAX_CHANNELS = (byte) 4;
+
 	// Command chaining
 	// "ram_buf" is used for:
-	// - GET RESPONSE (caching for response APDUs)
+	// - GET RESPONSE (caching for response APDUs computed on the card,
+	// certificates are sent directly from auth_cert/sign_cert)
 	// - Command Chaining or extended APDUs (caching of command APDU data)
 	private final static short RAM_BUF_SIZE = (short) 0x600;
+	// smallest ram_buf still holding the data of a short APDU
+	private final static short MIN_RAM_BUF_SIZE = (short) 0x100;
+	// default cert with es256 is 1033 bytes
+	private final static short CERT_CAPACITY = (short) 0x600;
+	private final static short MIN_CERT_CAPACITY = (short) 0x100;
+
+	// Install parameters
+	// The applet specific parameters of the INSTALL [for install] command are
+	// TLVs with a one byte tag and length, each of them optional:
+	// - 01, 2 bytes: size of ram_buf (RAM_BUF_SIZE)
+	// - 02, 2 bytes: capacity of auth_cert (CERT_CAPACITY)
+	// - 03, 2 bytes: capacity of sign_cert (CERT_CAPACITY)
+	// - 04, 1 byte: 00 = only short APDUs, the data of longer commands has to
+	// be chained and longer responses are fetched by GET RESPONSE (extended)
+	// - 05, 1 byte: auth PIN retries (AUTH_PIN_RETRIES_LIMIT)
+	// - 06, 1 byte: sign PIN retries (SIGN_PIN_RETRIES_LIMIT)
+	// - 07, 1 byte: admin PIN retries (ADMIN_PIN_RETRIES_LIMIT)
+	// - 08, 1 byte: maximum PIN size (PIN_MAX_SIZE)
+	// - 09, 1 byte: number of key slots (KEY_SLOT_COUNT)
+	// Memory is allocated exactly to these sizes. A certificate longer than
+	// ram_buf can only be written in parts by UPDATE BINARY.
+	public final static byte TAG_RAM_BUF_SIZE = (byte) 0x01;
+	public final static byte TAG_AUTH_CERT_CAPACITY = (byte) 0x02;
+	public final static byte TAG_SIGN_CERT_CAPACITY = (byte) 0x03;
+	public final static byte TAG_EXTENDED_APDU = (byte) 0x04;
+	public final static byte TAG_AUTH_PIN_RETRIES_LIMIT = (byte) 0x05;
+	public final static byte TAG_SIGN_PIN_RETRIES_LIMIT = (byte) 0x06;
+	public final static byte TAG_ADMIN_PIN_RETRIES_LIMIT = (byte) 0x07;
+	public final static byte TAG_PIN_MAX_SIZE = (byte) 0x08;
+	public final static byte TAG_KEY_SLOT_COUNT = (byte) 0x09;
 	// "ram_chaining_cache" is used for:
 	// - Caching of the amount of bytes remainung.
 	// - Caching of the current send position.
@@ -66,65 +194,285 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 	// (re-use CURRENT_POS)
 	// - Caching of the current INS (Only one chain at a time, for one specific
 	// instruction).
-	private final static short RAM_CHAINING_CACHE_SIZE = (short) 4;
+	// - Caching of the array the remaining bytes of a response are sent from.
+	private final static short RAM_CHAINING_CACHE_SIZE = (short) 5;
 	private final static short RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING = (short) 0;
 	private final static short RAM_CHAINING_CACHE_OFFSET_CURRENT_POS = (short) 1;
 	private final static short RAM_CHAINING_CACHE_OFFSET_CURRENT_INS = (short) 2;
 	private final static short RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2 = (short) 3;
-
-	// Card-specific configuration
-	public boolean USE_EXTENDED_APDU = false;
+	private final static short RAM_CHAINING_CACHE_OFFSET_CURRENT_SOURCE = (short) 4;
+
+	// Maximum data and response lengths of short and extended APDUs
+	private final static short MAX_SHORT_LC = (short) 255;
+	private final static short MAX_SHORT_LE = (short) 256;
+	private final static short MAX_EXTENDED_LE = (short) 0x7FFF;
+
+	// Indexes of the persistent counters, the signatures of key slot n are
+	// counted at COUNTER_SIGNATURES + n
+	private final static short COUNTER_PIN_FAILURES = (short) 0;
+	// READ BINARY at offset 0 and GET CERTIFICATE
+	private final static short COUNTER_CERTIFICATE_READS = (short) 1;
+	// Responses fetched completely by GET RESPONSE
+	private final static short COUNTER_GET_RESPONSE_CHAINS = (short) 2;
+	// Transactions torn or aborted before their commit
+	private final static short COUNTER_TRANSACTION_ABORTS = (short) 3;
+	private final static short COUNTER_SIGNATURES = (short) 4;
+	private final static short COUNTER_LENGTH = (short) 4;
+
+	// Arrays the response data can be sent from by sendLargeData
+	private final static short SOURCE_RAM_BUF = (short) 0;
+	private final static short SOURCE_AUTH_CERT = (short) 1;
+	private final static short SOURCE_SIGN_CERT = (short) 2;
 
 	// Attributes
-	private KeyPair auth_keypair;
-	private KeyPair sign_keypair;
-	private Signature ecc;
+	private KeyPair[] keypairs;
+	// Signature object of each slot, initialized with the slot's private key
+	private Signature[] signatures;
+	// PIN reference that has to be verified before using the slot's key
+	private byte[] slot_pin_references;
+	// SIGNATURE_FORMAT_DER or SIGNATURE_FORMAT_RAW
+	private byte[] slot_signature_formats;
+	// Whether the slot's Signature object has been initialized since the last
+	// card reset
+	private boolean[] slot_initialized;
 	private OwnerPIN authPIN, signPIN, adminPIN;
 	private boolean admin_pin_set = false;
+	// Set by the install parameters
+	private byte auth_pin_retries_limit = AUTH_PIN_RETRIES_LIMIT;
+	private byte sign_pin_retries_limit = SIGN_PIN_RETRIES_LIMIT;
+	private byte admin_pin_retries_limit = ADMIN_PIN_RETRIES_LIMIT;
+	private byte pin_max_size = PIN_MAX_SIZE;
+	private boolean extended_apdu = true;
+
+	// Operation counters (COUNTER_*), COUNTER_LENGTH bytes each. They are
+	// incremented in place with non-atomic writes, so counting never commits
+	// a transaction; an increment the card is torn in may be lost.
+	private byte[] counters;
+	// Transient copy of the counter being incremented
+	private byte[] counter_scratch;
+	// Commands processed since the card reset, COUNTER_LENGTH bytes
+	private byte[] session_apdus;
+	// Set to 1 by a non-atomic write before a transaction begins and cleared
+	// after its commit, so a transaction that was torn or aborted is found on
+	// the next select or transaction
+	private byte[] transaction_marker;
 
 	// Fields
 	private byte[] auth_cert;
 	private byte[] sign_cert;
+	// Amount of valid bytes in auth_cert/sign_cert, 0 = no certificate stored
+	private short auth_cert_len = (short) 0;
+	private short sign_cert_len = (short) 0;
+	// SHA-256 of auth_cert/sign_cert, computed when the certificate is stored
+	private byte[] auth_cert_fingerprint;
+	private byte[] sign_cert_fingerprint;
+	private MessageDigest sha256;
 	private short[] runtime_fields;
 	private byte[] ram_buf;
 	private short[] ram_chaining_cache;
 
-	// runtime_fields
+	// runtime_fields, per channel
+	private final static short RUNTIME_FIELDS_SIZE = (short) 3;
 	private short selected_file = (short) 0;
+	// Certificate file of the update announced by PUT DATA, 0 = none
+	private short updating_file = (short) 1;
+	// UPDATE BINARY commands of the announced update that are left
+	private short update_writes_left = (short) 2;
 
 	public static void install(byte[] bArray, short bOffset, byte bLength) throws ISOException {
-		(new InfinitEIDApplet()).register();
+		(new InfinitEIDApplet(bArray, bOffset, bLength)).register();
 	}
 
-	private InfinitEIDApplet() {
-		// Create keypairs
-		auth_keypair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
-		sign_keypair = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+	/**
+	 * \brief Create the applet with the sizes and limits given by the install
+	 * parameters.
+	 *
+	 * \param bArray The array with the install parameters, "Li AID Lc control
+	 * info La applet data".
+	 *
+	 * \param bOffset The offset of Li.
+	 *
+	 * \param bLength The length of the install parameters, 0 (e.g. in a
+	 * simulator) means the defaults.
+	 *
+	 * \throw ISOException SW_WRONG_DATA if the applet data is not a list of
+	 * known TLVs or a value is out of range, the installation fails then.
+	 */
+	private InfinitEIDApplet(byte[] bArray, short bOffset, byte bLength) {
+		short ram_buf_size = RAM_BUF_SIZE;
+		short auth_cert_capacity = CERT_CAPACITY;
+		short sign_cert_capacity = CERT_CAPACITY;
+		byte key_slot_count = KEY_SLOT_COUNT;
+
+		// Skip the instance AID and the control info
+		short offset = bOffset;
+		short end = bOffset;
+		if (bLength != (byte) 0) {
+			offset = (short) (offset + 1 + bArray[offset]);
+			offset = (short) (offset + 1 + bArray[offset]);
+			end = (short) (offset + 1 + (bArray[offset] & 0xFF));
+			offset++;
+		}
+
+		while (offset < end) {
+			if ((short) (offset + 2) > end) {
+				ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+			}
+			byte tag = bArray[offset];
+			short len = (short) (bArray[(short) (offset + 1)] & 0xFF);
+			offset = (short) (offset + 2);
+			short value_len = (tag == TAG_RAM_BUF_SIZE || tag == TAG_AUTH_CERT_CAPACITY
+					|| tag == TAG_SIGN_CERT_CAPACITY) ? (short) 2 : (short) 1;
+			if (len != value_len || (short) (offset + len) > end) {
+				ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+			}
+			short value = len == (short) 2 ? Util.getShort(bArray, offset) : (short) (bArray[offset] & 0xFF);
+
+			switch (tag) {
+				case TAG_RAM_BUF_SIZE:
+					ram_buf_size = checkInstallParameter(value, MIN_RAM_BUF_SIZE, (short) 0x7FFF);
+					break;
+				case TAG_AUTH_CERT_CAPACITY:
+					auth_cert_capacity = checkInstallParameter(value, MIN_CERT_CAPACITY, (short) 0x7FFF);
+					break;
+				case TAG_SIGN_CERT_CAPACITY:
+					sign_cert_capacity = checkInstallParameter(value, MIN_CERT_CAPACITY, (short) 0x7FFF);
+					break;
+				case TAG_EXTENDED_APDU:
+					extended_apdu = value != (short) 0;
+					break;
+				case TAG_AUTH_PIN_RETRIES_LIMIT:
+					auth_pin_retries_limit = (byte) checkInstallParameter(value, (short) 1, MAX_PIN_RETRIES_LIMIT);
+					break;
+				case TAG_SIGN_PIN_RETRIES_LIMIT:
+					sign_pin_retries_limit = (byte) checkInstallParameter(value, (short) 1, MAX_PIN_RETRIES_LIMIT);
+					break;
+				case TAG_ADMIN_PIN_RETRIES_LIMIT:
+					admin_pin_retries_limit = (byte) checkInstallParameter(value, (short) 1, MAX_PIN_RETRIES_LIMIT);
+					break;
+				case TAG_PIN_MAX_SIZE:
+					pin_max_size = (byte) checkInstallParameter(value, (short) 4, (short) 127);
+					break;
+				case TAG_KEY_SLOT_COUNT:
+					key_slot_count = (byte) checkInstallParameter(value, (short) 2, MAX_KEY_SLOT_COUNT);
+					break;
+				default:
+					ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+			}
+			offset = (short) (offset + len);
+		}
+
+		// Create key slots
+		keypairs = new KeyPair[key_slot_count];
+		signatures = new Signature[key_slot_count];
+		slot_pin_references = new byte[key_slot_count];
+		slot_signature_formats = new byte[key_slot_count];
+		for (short slot = 0; slot < key_slot_count; slot++) {
+			keypairs[slot] = new KeyPair(KeyPair.ALG_EC_FP, KeyBuilder.LENGTH_EC_FP_256);
+			signatures[slot] = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+			slot_pin_references[slot] = AUTH_PIN_REFERENCE;
+		}
+		slot_pin_references[getKeySlot(SIGNING_KEYPAIR_REFERENCE)] = SING_PIN_REFERENCE;
 
 		// Initialize pins
-		adminPIN = new OwnerPIN(ADMIN_PIN_RETRIES_LIMIT, PIN_MAX_SIZE);
-		authPIN = new OwnerPIN(AUTH_PIN_RETRIES_LIMIT, PIN_MAX_SIZE);
-		signPIN = new OwnerPIN(SIGN_PIN_RETRIES_LIMIT, PIN_MAX_SIZE);
+		adminPIN = new OwnerPIN(admin_pin_retries_limit, pin_max_size);
+		authPIN = new OwnerPIN(auth_pin_retries_limit, pin_max_size);
+		signPIN = new OwnerPIN(sign_pin_retries_limit, pin_max_size);
 
 		// Initialize certificate fields
-		// TODO: how big fields need to be? default cert with es256 is 1033 bytes
-		auth_cert = new byte[0x600];
+		auth_cert = new byte[auth_cert_capacity];
 		Util.arrayFillNonAtomic(auth_cert, (short) 0, (short) auth_cert.length, (byte) 0x00);
-		sign_cert = new byte[0x600];
+		sign_cert = new byte[sign_cert_capacity];
 		Util.arrayFillNonAtomic(sign_cert, (short) 0, (short) sign_cert.length, (byte) 0x00);
-
-		// Initialize signature objects
-		ecc = Signature.getInstance(Signature.ALG_ECDSA_SHA_256, false);
+		auth_cert_fingerprint = new byte[FINGERPRINT_LENGTH];
+		sign_cert_fingerprint = new byte[FINGERPRINT_LENGTH];
+		sha256 = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
 
 		// Initialize operational fields
 		// transient array for storing runtime_fields to keep it in RAM, not EEPROM
-		runtime_fields = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
-		ram_buf = JCSystem.makeTransientByteArray(RAM_BUF_SIZE, JCSystem.CLEAR_ON_DESELECT);
-		ram_chaining_cache = JCSystem.makeTransientShortArray(RAM_CHAINING_CACHE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+		runtime_fields = JCSystem.makeTransientShortArray((short) (RUNTIME_FIELDS_SIZE * MAX_CHANNELS),
+				JCSystem.CLEAR_ON_DESELECT);
+		ram_buf = JCSystem.makeTransientByteArray(ram_buf_size, JCSystem.CLEAR_ON_DESELECT);
+		ram_chaining_cache = JCSystem.makeTransientShortArray((short) (RAM_CHAINING_CACHE_SIZE * MAX_CHANNELS),
+				JCSystem.CLEAR_ON_DESELECT);
+		slot_initialized = JCSystem.makeTransientBooleanArray(key_slot_count, JCSystem.CLEAR_ON_RESET);
+
+		// Initialize counters
+		short counter_count = (short) (COUNTER_SIGNATURES + key_slot_count);
+		counters = new byte[(short) (counter_count * COUNTER_LENGTH)];
+		counter_scratch = JCSystem.makeTransientByteArray(COUNTER_LENGTH, JCSystem.CLEAR_ON_RESET);
+		session_apdus = JCSystem.makeTransientByteArray(COUNTER_LENGTH, JCSystem.CLEAR_ON_RESET);
+		transaction_marker = new byte[1];
+	}
+
+	/**
+	 * \brief Check that an install parameter is in the range.
+	 *
+	 * \return The value.
+	 *
+	 * \throw ISOException SW_WRONG_DATA if it is not.
+	 */
+	private static short checkInstallParameter(short value, short min, short max) {
+		if (value < min || value > max) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+		}
+		return value;
 	}
 
 	public boolean select() {
-		runtime_fields[selected_file] = FileHelper.FID_3F00;
+		return select(false);
+	}
+
+	public void deselect() {
+		deselect(false);
+	}
+
+	/**
+	 * \brief Select the applet on a logical channel.
+	 *
+	 * \param appInstAlreadyActive Whether the applet is selected on another
+	 * channel, the PINs are kept validated then.
+	 *
+	 * \return false on channels above MAX_CHANNELS.
+	 */
+	public boolean select(boolean appInstAlreadyActive) {
+		if (JCSystem.getAssignedChannel() >= MAX_CHANNELS) {
+			return false;
+		}
+		clearChannel();
+		if (!appInstAlreadyActive) {
+			resetPins();
+		}
+		countAbortedTransaction();
+		return true;
+	}
+
+	/**
+	 * \brief Deselect the applet from a logical channel.
+	 *
+	 * \param appInstStillActive Whether the applet stays selected on another
+	 * channel, the PINs are kept validated then.
+	 */
+	public void deselect(boolean appInstStillActive) {
+		clearChannel();
+		if (!appInstStillActive) {
+			resetPins();
+		}
+	}
+
+	/**
+	 * \brief Select MF and drop any chain, pending response or certificate
+	 * update of the current channel.
+	 */
+	private void clearChannel() {
+		for (short field = 0; field < RAM_CHAINING_CACHE_SIZE; field++) {
+			ram_chaining_cache[chaining(field)] = (short) 0;
+		}
+		runtime_fields[runtimeField(selected_file)] = FileHelper.FID_3F00;
+		closeCertificateUpdate();
+	}
+
+	private void resetPins() {
 		if (signPIN != null) {
 			signPIN.reset();
 		}
@@ -134,19 +482,12 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		if (adminPIN != null) {
 			adminPIN.reset();
 		}
-		return true;
-	}
-
-	public void deselect() {
-		runtime_fields[selected_file] = FileHelper.FID_3F00;
-		signPIN.reset();
-		authPIN.reset();
-		adminPIN.reset();
 	}
 
 	public void process(APDU apdu) throws ISOException {
 		byte[] buffer = apdu.getBuffer();
 		byte ins = buffer[IsoHelper.OFFSET_INS];
+		addToCounter(session_apdus, (short) 0, (short) 1);
 
 		if (selectingApplet())
 			return;
@@ -157,27 +498,31 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		}
 
 		// Command chaining checks
-		if (ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_INS] != (short) 0 || isCommandChainingCLA(apdu)) {
+		if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] != (short) 0
+				|| isCommandChainingCLA(apdu)) {
 			short p1p2 = Util.getShort(buffer, IsoHelper.OFFSET_P1);
 			/*
 			 * Command chaining only for:
 			 * - STORE CERTIFICATE
-			 * when not using extended APDUs.
+			 * - UPDATE BINARY
+			 * - PERFORM SIGNATURE of a batch of hashes or of a streamed document
 			 */
-			if (USE_EXTENDED_APDU || (ins != IsoHelper.INS_STORE_CERTIFICATE)) {
+			if (ins != IsoHelper.INS_STORE_CERTIFICATE && ins != IsoHelper.INS_UPDATE_BINARY
+					&& (ins != IsoHelper.INS_PERFORM_SIGNATURE
+							|| (p1p2 != BATCH_SIGNATURE_P1P2 && p1p2 != STREAMING_SIGNATURE_P1P2))) {
 				ISOException.throwIt(IsoHelper.SW_COMMAND_CHAINING_NOT_SUPPORTED);
 			}
 
-			if (ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_INS] == (short) 0
-					&& ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2] == (short) 0) {
+			if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] == (short) 0
+					&& ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2)] == (short) 0) {
 				/* A new chain is starting - set the current INS and P1P2. */
 				if (ins == (short) 0) {
 					ISOException.throwIt(IsoHelper.SW_INS_NOT_SUPPORTED);
 				}
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_INS] = (short) ins;
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2] = p1p2;
-			} else if (ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_INS] != ins
-					|| ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2] != p1p2) {
+				ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] = (short) ins;
+				ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2)] = p1p2;
+			} else if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] != ins
+					|| ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2)] != p1p2) {
 				/*
 				 * The current chain is not yet completed,
 				 * but an apdu not part of the chain had been received.
@@ -185,13 +530,14 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 				ISOException.throwIt(IsoHelper.SW_COMMAND_NOT_ALLOWED_GENERAL);
 			} else if (!isCommandChainingCLA(apdu)) {
 				/* A chain is ending, set the current INS and P1P2 to zero to indicate that. */
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_INS] = 0;
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2] = 0;
+				ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] = 0;
+				ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2)] = 0;
 			}
 		}
 
 		// If the card expects a GET RESPONSE, no other operation should be requested.
-		if (ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING] > 0 && ins != IsoHelper.INS_GET_RESPONSE) {
+		if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] > 0
+				&& ins != IsoHelper.INS_GET_RESPONSE) {
 			ISOException.throwIt(IsoHelper.SW_COMMAND_NOT_ALLOWED_GENERAL);
 		}
 
@@ -219,6 +565,9 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 				case IsoHelper.INS_PIN_RETRIES_LEFT:
 					retriesLeft(apdu, buffer);
 					break;
+				case IsoHelper.INS_GET_DATA:
+					getData(apdu, buffer);
+					break;
 				// Following cases need user PIN
 				case IsoHelper.INS_PERFORM_SIGNATURE:
 					performSignature(apdu, buffer);
@@ -239,6 +588,12 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 				case IsoHelper.INS_STORE_CERTIFICATE:
 					storeCertificate(apdu, buffer);
 					break;
+				case IsoHelper.INS_UPDATE_BINARY:
+					updateBinary(apdu, buffer);
+					break;
+				case IsoHelper.INS_PUT_DATA:
+					putData(apdu, buffer);
+					break;
 				default:
 					ISOException.throwIt(IsoHelper.SW_INS_NOT_SUPPORTED);
 			}
@@ -252,7 +607,7 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		byte p2 = buffer[IsoHelper.OFFSET_P2];
 
 		if (p1 == 0x00) {
-			runtime_fields[selected_file] = FileHelper.FID_3F00;
+			runtime_fields[runtimeField(selected_file)] = FileHelper.FID_3F00;
 		} else if (buffer[IsoHelper.OFFSET_LC] == (byte) 0x02) {
 			// len = length of data, should be lc
 			apdu.setIncomingAndReceive();
@@ -262,7 +617,7 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 				case FileHelper.FID_3F00:
 				case FileHelper.FID_AACE:
 				case FileHelper.FID_DDCE:
-					runtime_fields[selected_file] = fid;
+					runtime_fields[runtimeField(selected_file)] = fid;
 					break;
 				default:
 					ISOException.throwIt(IsoHelper.SW_FILE_NOT_FOUND);
@@ -272,15 +627,15 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 
 		// Send FCI if asked
 		if (p2 == 0x04 || p2 == 0x00) {
-			switch (runtime_fields[selected_file]) {
+			switch (runtime_fields[runtimeField(selected_file)]) {
 				case FileHelper.FID_3F00:
 					sendSmallData(apdu, FileHelper.fci_mf, (short) 0, (short) FileHelper.fci_mf.length);
 					break;
 				case FileHelper.FID_AACE:
-					sendSmallData(apdu, FileHelper.fci_aace, (short) 0, (short) FileHelper.fci_aace.length);
+					sendFci(apdu, FileHelper.fci_aace, auth_cert_len);
 					break;
 				case FileHelper.FID_DDCE:
-					sendSmallData(apdu, FileHelper.fci_ddce, (short) 0, (short) FileHelper.fci_ddce.length);
+					sendFci(apdu, FileHelper.fci_ddce, sign_cert_len);
 					break;
 				default:
 					ISOException.throwIt(IsoHelper.SW_FILE_NOT_FOUND);
@@ -291,65 +646,560 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 	private void readBinary(APDU apdu, byte[] buffer) {
 		short offset = Util.makeShort(buffer[IsoHelper.OFFSET_P1], buffer[IsoHelper.OFFSET_P2]);
 		// len = le
-		short len = apdu.setOutgoing();
-
-		if (runtime_fields[selected_file] == FileHelper.FID_AACE) {
-			sendSmallData(apdu, auth_cert, offset, len);
-		} else if (runtime_fields[selected_file] == FileHelper.FID_DDCE) {
-			sendSmallData(apdu, sign_cert, offset, len);
+		short len = setOutgoingLe(apdu);
+		short source = SOURCE_RAM_BUF;
+		short cert_len = (short) 0;
+
+		if (runtime_fields[runtimeField(selected_file)] == FileHelper.FID_AACE) {
+			source = SOURCE_AUTH_CERT;
+			cert_len = auth_cert_len;
+		} else if (runtime_fields[runtimeField(selected_file)] == FileHelper.FID_DDCE) {
+			source = SOURCE_SIGN_CERT;
+			cert_len = sign_cert_len;
 		} else {
 			ISOException.throwIt(IsoHelper.SW_FILE_NOT_FOUND);
 		}
+
+		// Offset outside of the stored certificate
+		if (offset < (short) 0 || offset >= cert_len) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_P1P2);
+		}
+
+		// Return what is left if application asked for more
+		if (len > (short) (cert_len - offset)) {
+			len = (short) (cert_len - offset);
+		}
+		if (offset == (short) 0) {
+			countEvent(COUNTER_CERTIFICATE_READS, (short) 1);
+		}
+		// Extended Le lets the whole certificate be read at once, so do not copy
+		// through the APDU buffer
+		sendLargeData(apdu, len, source, offset, len);
+	}
+
+	/**
+	 * \brief Overwrite a part of the selected certificate file, so a renewed
+	 * certificate only rewrites the bytes that differ from the stored one.
+	 *
+	 * The writes have to be announced by PUT DATA (CERTIFICATE_UPDATE_REFERENCE)
+	 * with the admin PIN, which invalidates the stored certificate. Every
+	 * UPDATE BINARY of the selected file consumes one of the announced writes,
+	 * the last one takes the DER SEQUENCE at the start of the file as the new
+	 * certificate by commitCertificate(). Any error closes the update and
+	 * leaves no certificate stored, so a torn or failed renewal never mixes
+	 * the old and the new certificate under a valid fingerprint.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param buffer The APDU buffer, P1P2 is the offset in the file. The data
+	 * can be sent using command chaining or an extended APDU.
+	 *
+	 * \throw ISOException SW_FILE_NOT_FOUND if no certificate file is selected,
+	 * SW_SECURITY_STATUS_NOT_SATISFIED if no write of the file is announced,
+	 * SW_WRONG_P1P2 or SW_WRONG_LENGTH if the data does not fit in the file,
+	 * SW_WRONG_DATA if the file does not start with a DER SEQUENCE after the
+	 * last write.
+	 */
+	private void updateBinary(APDU apdu, byte[] buffer) {
+		short fid = runtime_fields[runtimeField(selected_file)];
+		if (fid != FileHelper.FID_AACE && fid != FileHelper.FID_DDCE) {
+			ISOException.throwIt(IsoHelper.SW_FILE_NOT_FOUND);
+		}
+		short source = fid == FileHelper.FID_AACE ? SOURCE_AUTH_CERT : SOURCE_SIGN_CERT;
+		// A certificate stored since the update was announced closes it
+		if (runtime_fields[runtimeField(updating_file)] != fid
+				|| runtime_fields[runtimeField(update_writes_left)] <= (short) 0
+				|| getCertificateLength(source) != (short) 0) {
+			closeCertificateUpdate();
+			ISOException.throwIt(IsoHelper.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		try {
+			writeBinary(apdu, buffer, source);
+			runtime_fields[runtimeField(update_writes_left)]--;
+			if (runtime_fields[runtimeField(update_writes_left)] == (short) 0) {
+				closeCertificateUpdate();
+				commitCertificate(source, (short) getSourceArray(source).length);
+			}
+		} catch (RuntimeException e) {
+			// SW_NO_ERROR ends a command of a chain
+			if (!(e instanceof ISOException) || ((ISOException) e).getReason() != IsoHelper.SW_NO_ERROR) {
+				closeCertificateUpdate();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * \brief Write the data of UPDATE BINARY to a certificate array.
+	 *
+	 * \param source SOURCE_AUTH_CERT or SOURCE_SIGN_CERT.
+	 */
+	private void writeBinary(APDU apdu, byte[] buffer, short source) {
+		short offset = Util.makeShort(buffer[IsoHelper.OFFSET_P1], buffer[IsoHelper.OFFSET_P2]);
+		byte[] cert = getSourceArray(source);
+		if (offset < (short) 0 || offset >= (short) cert.length) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_P1P2);
+		}
+
+		short recvLen = doChainingOrExtAPDU(apdu);
+		if (recvLen > (short) (cert.length - offset)) {
+			clearRamBuf(recvLen);
+			ISOException.throwIt(IsoHelper.SW_WRONG_LENGTH);
+		}
+		checkCertificateNotSending(source, recvLen);
+
+		// The certificate is invalidated until the last write
+		Util.arrayCopyNonAtomic(ram_buf, (short) 0, cert, offset, recvLen);
+		clearRamBuf(recvLen);
+	}
+
+	/**
+	 * \brief Open an update of a certificate by UPDATE BINARY on the current
+	 * channel and invalidate the stored certificate.
+	 *
+	 * \param reference 0x01 auth or 0x02 sign certificate.
+	 *
+	 * \param writes The number of UPDATE BINARY commands, 1 - 255.
+	 *
+	 * \throw ISOException SW_INCORRECT_P1P2 for an unknown certificate,
+	 * SW_WRONG_DATA if writes is 0.
+	 */
+	private void openCertificateUpdate(byte reference, byte writes) {
+		short source = SOURCE_AUTH_CERT;
+		short fid = FileHelper.FID_AACE;
+		if (reference == (byte) 0x02) {
+			source = SOURCE_SIGN_CERT;
+			fid = FileHelper.FID_DDCE;
+		} else if (reference != (byte) 0x01) {
+			ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
+		}
+		if (writes == (byte) 0) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+		}
+		checkCertificateNotSending(source, (short) 0);
+
+		setCertificateLength(source, (short) 0);
+		runtime_fields[runtimeField(updating_file)] = fid;
+		runtime_fields[runtimeField(update_writes_left)] = (short) (writes & 0xFF);
 	}
 
+	private void closeCertificateUpdate() {
+		runtime_fields[runtimeField(updating_file)] = (short) 0;
+		runtime_fields[runtimeField(update_writes_left)] = (short) 0;
+	}
+
+	/**
+	 * \brief Make the DER SEQUENCE at the start of a certificate array the
+	 * stored certificate.
+	 *
+	 * Its length and fingerprint cover exactly the SEQUENCE, whether it was
+	 * written by STORE CERTIFICATE or UPDATE BINARY. The length has to be
+	 * invalidated while the array is written, the fingerprint and the length
+	 * are then set in one transaction.
+	 *
+	 * \param source SOURCE_AUTH_CERT or SOURCE_SIGN_CERT.
+	 *
+	 * \param max_len The amount of written bytes the SEQUENCE has to fit in.
+	 *
+	 * \throw ISOException SW_WRONG_DATA if there is no such SEQUENCE, no
+	 * certificate is stored then.
+	 */
+	private void commitCertificate(short source, short max_len) {
+		byte[] cert = getSourceArray(source);
+		short cert_len = getDerLength(cert, max_len);
+		if (cert_len == (short) 0) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+		}
+
+		// Digest output is not guaranteed to be transactional, so it is copied
+		sha256.doFinal(cert, (short) 0, cert_len, ram_buf, (short) 0);
+		beginTransaction();
+		Util.arrayCopy(ram_buf, (short) 0, source == SOURCE_AUTH_CERT ? auth_cert_fingerprint
+				: sign_cert_fingerprint, (short) 0, FINGERPRINT_LENGTH);
+		setCertificateLength(source, cert_len);
+		commitTransaction();
+		clearRamBuf(FINGERPRINT_LENGTH);
+	}
+
+	private short getCertificateLength(short source) {
+		return source == SOURCE_AUTH_CERT ? auth_cert_len : sign_cert_len;
+	}
+
+	private void setCertificateLength(short source, short len) {
+		if (source == SOURCE_AUTH_CERT) {
+			auth_cert_len = len;
+		} else {
+			sign_cert_len = len;
+		}
+	}
+
+	/**
+	 * \brief Get the length of a DER SEQUENCE, including its header.
+	 *
+	 * \param header The first DER_HEADER_MAX_LENGTH bytes of the SEQUENCE.
+	 *
+	 * \param max_len The size of the file the SEQUENCE is stored in.
+	 *
+	 * \return The length, 0 if the header is not a SEQUENCE or the SEQUENCE
+	 * does not fit in the file.
+	 */
+	private static short getDerLength(byte[] header, short max_len) {
+		if (header[0] != (byte) 0x30) {
+			return (short) 0;
+		}
+		short len;
+		short length_byte = (short) (header[1] & 0xFF);
+		if (length_byte < (short) 0x80) {
+			len = (short) (2 + length_byte);
+		} else if (length_byte == (short) 0x81) {
+			len = (short) (3 + (header[2] & 0xFF));
+		} else if (length_byte == (short) 0x82 && header[2] >= (byte) 0) {
+			len = (short) (4 + Util.getShort(header, (short) 2));
+		} else {
+			return (short) 0;
+		}
+		if (len < (short) 0 || len > max_len) {
+			return (short) 0;
+		}
+		return len;
+	}
+
+	/**
+	 * \brief Sign the received hash with an authentication key.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param buffer The APDU buffer, P2 is the key reference, 0 selects
+	 * AUTH_KEYPAIR_REFERENCE.
+	 *
+	 * \throw ISOException SW_INCORRECT_P1P2 for the signing key, which is only
+	 * used by PERFORM SIGNATURE.
+	 */
 	private void authenticate(APDU apdu, byte[] buffer) {
-		if (!authPIN.isValidated()) {
-			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
+		byte reference = buffer[IsoHelper.OFFSET_P2];
+		if (reference == (byte) 0) {
+			reference = AUTH_KEYPAIR_REFERENCE;
+		} else if (reference == SIGNING_KEYPAIR_REFERENCE) {
+			ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
 		}
-		short len = apdu.setIncomingAndReceive();
-		ecc.init(auth_keypair.getPrivate(), Signature.MODE_SIGN);
-		short len2 = ecc.signPreComputedHash(buffer, IsoHelper.OFFSET_CDATA, len, ram_buf, (short) 0);
-		authPIN.reset();
-		sendSmallData(apdu, ram_buf, (short) 0, len2);
+		signHash(apdu, getKeySlot(reference), buffer[IsoHelper.OFFSET_P1] == INPUT_TEMPLATE_REFERENCE);
 	}
 
 	private void performSignature(APDU apdu, byte[] buffer) {
-		if (!signPIN.isValidated()) {
-			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
-		}
 		byte p1 = buffer[IsoHelper.OFFSET_P1];
 		byte p2 = buffer[IsoHelper.OFFSET_P2];
-		short len = apdu.setIncomingAndReceive();
 
 		short parameters = Util.makeShort(p1, p2);
-		if (parameters == (short) 0x9E9A) {
-			ecc.init(sign_keypair.getPrivate(), Signature.MODE_SIGN);
-			short len2 = ecc.signPreComputedHash(buffer, IsoHelper.OFFSET_CDATA, len, ram_buf, (short) 0);
-			signPIN.reset();
-			sendSmallData(apdu, ram_buf, (short) 0, len2);
+		if (parameters == SIGNATURE_P1P2) {
+			signHash(apdu, getKeySlot(SIGNING_KEYPAIR_REFERENCE), false);
+		} else if (parameters == VERIFY_AND_SIGNATURE_P1P2) {
+			signHash(apdu, getKeySlot(SIGNING_KEYPAIR_REFERENCE), true);
+		} else if (parameters == BATCH_SIGNATURE_P1P2) {
+			if (!signPIN.isValidated()) {
+				ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
+			}
+			performBatchSignature(apdu);
+		} else if (parameters == STREAMING_SIGNATURE_P1P2) {
+			performStreamingSignature(apdu);
 		} else {
 			ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
 		}
 	}
 
+	/**
+	 * \brief Sign the hash from the command data with the key of the slot and
+	 * send the signature. The PIN the slot is bound to is reset afterwards.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param slot The key slot.
+	 *
+	 * \param input_template Whether the data is an input template with the PIN
+	 * and the hash, otherwise it is the hash and the PIN has to be verified by
+	 * VERIFY before.
+	 */
+	private void signHash(APDU apdu, short slot, boolean input_template) {
+		byte[] buffer = apdu.getBuffer();
+		OwnerPIN pin = getSlotPin(slot);
+		if (!input_template && !pin.isValidated()) {
+			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
+		}
+		short len2 = (short) 0;
+		// The PIN is reset on every exit, also if signing throws
+		try {
+			Signature signature = getSlotSignature(slot);
+			checkRamBufFree();
+			short len = apdu.setIncomingAndReceive();
+			short offset = apdu.getOffsetCdata();
+
+			if (input_template) {
+				short hash_offset = checkInputTemplate(pin, buffer, offset, len);
+				len = (short) (offset + len - hash_offset);
+				offset = hash_offset;
+			}
+
+			len2 = signature.signPreComputedHash(buffer, offset, len, ram_buf, MAX_SIGNATURE_LENGTH);
+		} finally {
+			pin.reset();
+		}
+		countEvent((short) (COUNTER_SIGNATURES + slot), (short) 1);
+		len2 = formatSignature(slot, ram_buf, MAX_SIGNATURE_LENGTH, len2, ram_buf, (short) 0);
+		sendSmallData(apdu, ram_buf, (short) 0, len2);
+	}
+
+	/**
+	 * \brief Verify the PIN of an input template.
+	 *
+	 * \param pin The PIN to verify.
+	 *
+	 * \param buffer The APDU buffer.
+	 *
+	 * \param offset The offset of the template, "81 Lpin PIN 90 Lhash HASH".
+	 *
+	 * \param len The length of the template.
+	 *
+	 * \return The offset of the hash.
+	 *
+	 * \throw ISOException SW_WRONG_DATA if the template is malformed or the
+	 * hash is not HASH_LENGTH bytes long, SW_PIN_BLOCKED or
+	 * SW_WRONG_PIN_X_TRIES_LEFT as VERIFY does.
+	 */
+	private short checkInputTemplate(OwnerPIN pin, byte[] buffer, short offset, short len) {
+		short end = (short) (offset + len);
+		short pin_len = (short) 0;
+		short hash_tag = end;
+
+		if (len > (short) 2 && buffer[offset] == TAG_PIN) {
+			pin_len = (short) (buffer[(short) (offset + 1)] & 0xFF);
+			hash_tag = (short) (offset + 2 + pin_len);
+		}
+		// The hash is checked before the PIN, so a malformed template does not
+		// leave the PIN validated
+		if (pin_len == (short) 0 || pin_len > pin_max_size || (short) (hash_tag + 2) > end
+				|| buffer[hash_tag] != TAG_HASH || buffer[(short) (hash_tag + 1)] != (byte) HASH_LENGTH
+				|| (short) (hash_tag + 2 + HASH_LENGTH) != end) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+		}
+
+		checkPin(pin, buffer, (short) (offset + 2), (byte) pin_len);
+		return (short) (hash_tag + 2);
+	}
+
+	/**
+	 * \brief Check the PIN, throw if it is blocked or wrong.
+	 */
+	private void checkPin(OwnerPIN pin, byte[] buffer, short offset, byte len) {
+		if (pin.getTriesRemaining() == (byte) 0) {
+			ISOException.throwIt(IsoHelper.SW_PIN_BLOCKED);
+		}
+
+		if (!pin.check(buffer, offset, len)) {
+			countEvent(COUNTER_PIN_FAILURES, (short) 1);
+			ISOException.throwIt((short) (IsoHelper.SW_WRONG_PIN_X_TRIES_LEFT | pin.getTriesRemaining()));
+		}
+	}
+
+	/**
+	 * \brief Sign every hash of the received batch with the signing key after a
+	 * single sign PIN verification.
+	 *
+	 * The hashes are accumulated in ram_buf, the signatures are written behind
+	 * them and sent with sendLargeData, so the host fetches the rest with GET
+	 * RESPONSE. DER signatures are self-delimiting and raw ones have a fixed
+	 * length, the response is their plain concatenation in the order of the
+	 * hashes.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \throw ISOException SW_WRONG_LENGTH if the data is not a multiple of
+	 * HASH_LENGTH or the signatures would not fit into ram_buf. The sign PIN
+	 * is reset by the last command of the chain and by any error.
+	 */
+	private void performBatchSignature(APDU apdu) {
+		short len = (short) 0;
+		short count = (short) 0;
+		short out = (short) 0;
+		short slot = getKeySlot(SIGNING_KEYPAIR_REFERENCE);
+		try {
+			len = doChainingOrExtAPDU(apdu);
+			count = (short) (len / HASH_LENGTH);
+			short signature_len = slot_signature_formats[slot] == SIGNATURE_FORMAT_RAW ? RAW_SIGNATURE_LENGTH
+					: MAX_SIGNATURE_LENGTH;
+
+			// Divided instead of multiplied, count * signature_len can overflow
+			// with a large ram_buf
+			if (count == (short) 0 || (short) (len % HASH_LENGTH) != (short) 0
+					|| count > (short) ((short) ((short) ram_buf.length - len) / signature_len)) {
+				ISOException.throwIt(IsoHelper.SW_WRONG_LENGTH);
+			}
+
+			// Every signature is created in the APDU buffer, whose data has
+			// already been copied to ram_buf, and written to ram_buf in the
+			// slot's format
+			byte[] buffer = apdu.getBuffer();
+			Signature signature = getSlotSignature(slot);
+			out = len;
+			for (short pos = 0; pos < len; pos += HASH_LENGTH) {
+				short der_len = signature.signPreComputedHash(ram_buf, pos, HASH_LENGTH, buffer, (short) 0);
+				out += formatSignature(slot, buffer, (short) 0, der_len, ram_buf, out);
+			}
+		} finally {
+			// The PIN stays validated only between the commands of a chain
+			// that goes on, a finished or aborted chain resets it
+			if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] == (short) 0) {
+				signPIN.reset();
+			}
+		}
+		countEvent((short) (COUNTER_SIGNATURES + slot), count);
+
+		short le = setOutgoingLe(apdu);
+		sendLargeData(apdu, le, SOURCE_RAM_BUF, len, (short) (out - len));
+	}
+
+	/**
+	 * \brief Hash the received part of a document with the signing key's
+	 * Signature object, sign the hash when the last command of the chain
+	 * arrives.
+	 *
+	 * Every command of the chain, and every part of an extended APDU, is
+	 * passed to Signature.update as soon as it is received, nothing is
+	 * buffered, so a document of any length is signed in constant memory. The
+	 * chain itself is tracked by ram_chaining_cache as any other, CURRENT_POS
+	 * only marks that the first command has been processed. The Signature
+	 * object is initialized again by the first command, so data left by an
+	 * interrupted stream is dropped.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \throw ISOException SW_PIN_VERIFICATION_REQUIRED if the sign PIN is not
+	 * verified, SW_WRONG_LENGTH for an extended APDU if extended APDUs are
+	 * disabled. Both abort the chain.
+	 */
+	private void performStreamingSignature(APDU apdu) {
+		if (!signPIN.isValidated()) {
+			abortChain();
+			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
+		}
+		checkRamBufFree();
+		byte[] buffer = apdu.getBuffer();
+		short len = apdu.setIncomingAndReceive();
+		short offset = apdu.getOffsetCdata();
+		if (!extended_apdu && apdu.getIncomingLength() > MAX_SHORT_LC) {
+			abortChain();
+			ISOException.throwIt(IsoHelper.SW_WRONG_LENGTH);
+		}
+
+		short slot = getKeySlot(SIGNING_KEYPAIR_REFERENCE);
+		if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] == (short) 0) {
+			slot_initialized[slot] = false;
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = (short) 1;
+		}
+		Signature signature = getSlotSignature(slot);
+
+		short remaining = (short) (apdu.getIncomingLength() - len);
+		while (remaining > (short) 0) {
+			signature.update(buffer, offset, len);
+			len = apdu.receiveBytes(offset);
+			remaining -= len;
+		}
+
+		if (isCommandChainingCLA(apdu)) {
+			signature.update(buffer, offset, len);
+			return;
+		}
+
+		ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = (short) 0;
+		len = signature.sign(buffer, offset, len, ram_buf, MAX_SIGNATURE_LENGTH);
+		signPIN.reset();
+		countEvent((short) (COUNTER_SIGNATURES + slot), (short) 1);
+		len = formatSignature(slot, ram_buf, MAX_SIGNATURE_LENGTH, len, ram_buf, (short) 0);
+		sendSmallData(apdu, ram_buf, (short) 0, len);
+	}
+
+	/**
+	 * \brief Write the DER signature in the signature format of the slot.
+	 *
+	 * \param slot The key slot.
+	 *
+	 * \param der The buffer with the DER signature.
+	 *
+	 * \param der_offset The offset of the DER signature.
+	 *
+	 * \param der_len The length of the DER signature.
+	 *
+	 * \param out The output buffer, must not overlap the DER signature.
+	 *
+	 * \param out_offset The offset in the output buffer.
+	 *
+	 * \return The length of the written signature.
+	 */
+	private short formatSignature(short slot, byte[] der, short der_offset, short der_len, byte[] out,
+			short out_offset) {
+		if (slot_signature_formats[slot] != SIGNATURE_FORMAT_RAW) {
+			Util.arrayCopyNonAtomic(der, der_offset, out, out_offset, der_len);
+			return der_len;
+		}
+
+		// SEQUENCE { INTEGER r, INTEGER s }, every length of a P-256 signature
+		// fits into one byte
+		short pos = (short) (der_offset + 2);
+		short end = (short) (out_offset + RAW_SIGNATURE_LENGTH);
+		for (short value = out_offset; value < end; value += SIGNATURE_VALUE_LENGTH) {
+			short len = der[(short) (pos + 1)];
+			short start = (short) (pos + 2);
+			pos = (short) (start + len);
+			// Leading zero of an INTEGER with the highest bit set
+			if (len > SIGNATURE_VALUE_LENGTH) {
+				start = (short) (start + len - SIGNATURE_VALUE_LENGTH);
+				len = SIGNATURE_VALUE_LENGTH;
+			}
+			short padding = (short) (SIGNATURE_VALUE_LENGTH - len);
+			Util.arrayFillNonAtomic(out, value, padding, (byte) 0);
+			Util.arrayCopyNonAtomic(der, start, out, (short) (value + padding), len);
+		}
+		return RAW_SIGNATURE_LENGTH;
+	}
+
+	/**
+	 * \brief Generate the keypair of a key slot and initialize its Signature
+	 * object.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param buffer The APDU buffer, P1 is the key reference, P2
+	 * KEYPAIR_GENERATION_REFERENCE. The optional data is a single PIN reference
+	 * (AUTH_PIN_REFERENCE or SING_PIN_REFERENCE) the key of an additional slot
+	 * gets bound to.
+	 *
+	 * \throw ISOException SW_WRONG_DATA if the PIN binding is invalid or the
+	 * slot is AUTH_KEYPAIR_REFERENCE or SIGNING_KEYPAIR_REFERENCE, whose
+	 * bindings are fixed.
+	 */
 	private void generateKeypair(APDU apdu, byte[] buffer) {
 		if (!adminPIN.isValidated()) {
 			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
 		}
 		byte p1 = buffer[IsoHelper.OFFSET_P1];
 		byte p2 = buffer[IsoHelper.OFFSET_P2];
-		KeyPair key_pair = null;
-
-		if (p1 == AUTH_KEYPAIR_REFERENCE) {
-			key_pair = auth_keypair;
-		} else if (p1 == SIGNING_KEYPAIR_REFERENCE) {
-			key_pair = sign_keypair;
-		}
+		short slot = getKeySlot(p1);
+		KeyPair key_pair = keypairs[slot];
 
 		// Generation
 		if (p2 == KEYPAIR_GENERATION_REFERENCE) {
+			short len = apdu.setIncomingAndReceive();
+			if (len != (short) 0) {
+				byte pin_reference = buffer[IsoHelper.OFFSET_CDATA];
+				if (len != (short) 1 || p1 == AUTH_KEYPAIR_REFERENCE || p1 == SIGNING_KEYPAIR_REFERENCE
+						|| (pin_reference != AUTH_PIN_REFERENCE && pin_reference != SING_PIN_REFERENCE)) {
+					ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+				}
+				slot_pin_references[slot] = pin_reference;
+			}
 			secp256r1.setCurveParameters((ECPublicKey) key_pair.getPublic());
 			key_pair.genKeyPair();
+			signatures[slot].init(key_pair.getPrivate(), Signature.MODE_SIGN);
+			slot_initialized[slot] = true;
 			adminPIN.reset();
 			ISOException.throwIt(IsoHelper.SW_NO_ERROR);
 		} else {
@@ -360,13 +1210,7 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 	private void getPublicKey(APDU apdu, byte[] buffer) {
 		byte p1 = buffer[IsoHelper.OFFSET_P1];
 		byte p2 = buffer[IsoHelper.OFFSET_P2];
-		KeyPair key_pair = null;
-
-		if (p1 == AUTH_KEYPAIR_REFERENCE) {
-			key_pair = auth_keypair;
-		} else if (p1 == SIGNING_KEYPAIR_REFERENCE) {
-			key_pair = sign_keypair;
-		}
+		KeyPair key_pair = keypairs[getKeySlot(p1)];
 
 		if (p2 == GET_PUBLIC_KEY_REFERENCE) {
 			short len = ((ECPublicKey) key_pair.getPublic()).getW(buffer, (short) 0);
@@ -376,6 +1220,43 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		}
 	}
 
+	/**
+	 * \brief Translate a key reference to the index of its key slot.
+	 *
+	 * \throw ISOException SW_REFERENCE_DATA_NOT_FOUND if there is no such slot.
+	 */
+	private short getKeySlot(byte reference) {
+		if (reference < (byte) 1 || reference > (short) keypairs.length) {
+			ISOException.throwIt(IsoHelper.SW_REFERENCE_DATA_NOT_FOUND);
+		}
+		return (short) (reference - 1);
+	}
+
+	private OwnerPIN getSlotPin(short slot) {
+		return slot_pin_references[slot] == SING_PIN_REFERENCE ? signPIN : authPIN;
+	}
+
+	/**
+	 * \brief Get the Signature object of a key slot, ready for signing.
+	 *
+	 * The object is initialized when the keypair is generated. Whether it keeps
+	 * the key over a card reset is platform dependent, so it is initialized
+	 * again once after every reset.
+	 *
+	 * \throw ISOException SW_REFERENCE_DATA_NOT_FOUND if the keypair of the slot
+	 * has not been generated.
+	 */
+	private Signature getSlotSignature(short slot) {
+		if (!slot_initialized[slot]) {
+			if (!keypairs[slot].getPrivate().isInitialized()) {
+				ISOException.throwIt(IsoHelper.SW_REFERENCE_DATA_NOT_FOUND);
+			}
+			signatures[slot].init(keypairs[slot].getPrivate(), Signature.MODE_SIGN);
+			slot_initialized[slot] = true;
+		}
+		return signatures[slot];
+	}
+
 	private void storeCertificate(APDU apdu, byte[] buffer) {
 		if (!adminPIN.isValidated()) {
 			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
@@ -383,39 +1264,82 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		byte p1 = buffer[IsoHelper.OFFSET_P1];
 		short recvLen = doChainingOrExtAPDU(apdu);
 
-		if (!apdu.isCommandChainingCLA()) {
-			if (p1 == (byte) 0x01) {
-				Util.arrayCopyNonAtomic(ram_buf, (short) 0, auth_cert, (short) 0,
-						recvLen);
-				clearRamBuf();
-			} else if (p1 == (byte) 0x02) {
-				Util.arrayCopyNonAtomic(ram_buf, (short) 0, sign_cert, (short) 0,
-						recvLen);
-				clearRamBuf();
-			} else
+		try {
+			short source = SOURCE_AUTH_CERT;
+			if (p1 == (byte) 0x02) {
+				source = SOURCE_SIGN_CERT;
+			} else if (p1 != (byte) 0x01) {
 				ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
+			}
+			byte[] cert = getSourceArray(source);
+			if (recvLen > (short) cert.length) {
+				ISOException.throwIt(IsoHelper.SW_WRONG_LENGTH);
+			}
+			checkCertificateNotSending(source, recvLen);
 
+			/*
+			 * The stored length is invalidated before the (non-atomic) copy and set only
+			 * after it, so an interrupted write leaves no certificate instead of a partial
+			 * one. Unlike a transaction over the whole copy this does not depend on the
+			 * size of the card's commit buffer.
+			 */
+			setCertificateLength(source, (short) 0);
+			Util.arrayCopyNonAtomic(ram_buf, (short) 0, cert, (short) 0, recvLen);
+			clearRamBuf(recvLen);
+			commitCertificate(source, recvLen);
+		} finally {
 			adminPIN.reset();
 		}
 	}
 
 	private void getCertificate(APDU apdu, byte[] buffer) {
 		byte p1 = buffer[IsoHelper.OFFSET_P1];
-		apdu.setOutgoing();
+		byte p2 = buffer[IsoHelper.OFFSET_P2];
+		if (p2 == CERTIFICATE_FINGERPRINT_REFERENCE) {
+			getCertificateFingerprint(apdu, p1);
+			return;
+		}
+		short le = setOutgoingLe(apdu);
+		if (p1 == (byte) 0x01 || p1 == (byte) 0x02) {
+			countEvent(COUNTER_CERTIFICATE_READS, (short) 1);
+		}
 		if (p1 == (byte) 0x01) {
-			Util.arrayCopyNonAtomic(auth_cert, (short) 0, ram_buf, (short) 0,
-					(short) auth_cert.length);
-			sendLargeData(apdu, (short) 0, (short) auth_cert.length);
+			sendLargeData(apdu, le, SOURCE_AUTH_CERT, (short) 0, auth_cert_len);
 		} else if (p1 == (byte) 0x02) {
-			Util.arrayCopyNonAtomic(sign_cert, (short) 0, ram_buf, (short) 0,
-					(short) sign_cert.length);
-			sendLargeData(apdu, (short) 0, (short) sign_cert.length);
+			sendLargeData(apdu, le, SOURCE_SIGN_CERT, (short) 0, sign_cert_len);
 		} else {
 			ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
 		}
 
 	}
 
+	/**
+	 * \brief Send the SHA-256 of the stored certificate.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param p1 The certificate reference, 0x01 auth or 0x02 sign.
+	 *
+	 * \throw ISOException SW_REFERENCE_DATA_NOT_FOUND if no certificate is stored.
+	 */
+	private void getCertificateFingerprint(APDU apdu, byte p1) {
+		byte[] fingerprint = null;
+		short cert_len = (short) 0;
+		if (p1 == (byte) 0x01) {
+			fingerprint = auth_cert_fingerprint;
+			cert_len = auth_cert_len;
+		} else if (p1 == (byte) 0x02) {
+			fingerprint = sign_cert_fingerprint;
+			cert_len = sign_cert_len;
+		} else {
+			ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
+		}
+		if (cert_len == (short) 0) {
+			ISOException.throwIt(IsoHelper.SW_REFERENCE_DATA_NOT_FOUND);
+		}
+		sendSmallData(apdu, fingerprint, (short) 0, FINGERPRINT_LENGTH);
+	}
+
 	private void verifyPin(APDU apdu, byte[] buffer) {
 		byte p1 = buffer[IsoHelper.OFFSET_P1];
 		byte p2 = buffer[IsoHelper.OFFSET_P2];
@@ -427,7 +1351,7 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 		}
 
-		if (lc != apdu.getIncomingLength() || lc > PIN_MAX_SIZE) {
+		if (lc != apdu.getIncomingLength() || lc > pin_max_size) {
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		}
 
@@ -445,14 +1369,8 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 				ISOException.throwIt(IsoHelper.SW_WRONG_P1P2);
 		}
 
-		if (pin.getTriesRemaining() == (byte) 0) {
-			ISOException.throwIt(IsoHelper.SW_PIN_BLOCKED);
-		}
-
 		// Check the PIN.
-		if (!pin.check(buffer, offset_cdata, (byte) lc)) {
-			ISOException.throwIt((short) (IsoHelper.SW_WRONG_PIN_X_TRIES_LEFT | pin.getTriesRemaining()));
-		}
+		checkPin(pin, buffer, offset_cdata, (byte) lc);
 	}
 
 	private void retriesLeft(APDU apdu, byte[] buffer) {
@@ -468,15 +1386,15 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		switch (p2) {
 			case ADMIN_PIN_REFERENCE:
 				pin = adminPIN;
-				retries_limit = ADMIN_PIN_RETRIES_LIMIT;
+				retries_limit = admin_pin_retries_limit;
 				break;
 			case AUTH_PIN_REFERENCE:
 				pin = authPIN;
-				retries_limit = AUTH_PIN_RETRIES_LIMIT;
+				retries_limit = auth_pin_retries_limit;
 				break;
 			case SING_PIN_REFERENCE:
 				pin = signPIN;
-				retries_limit = SIGN_PIN_RETRIES_LIMIT;
+				retries_limit = sign_pin_retries_limit;
 				break;
 			default:
 				ISOException.throwIt(IsoHelper.SW_WRONG_P1P2);
@@ -485,6 +1403,194 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		apdu.setOutgoingAndSend((short) 0x00, (short) 0x02);
 	}
 
+	/**
+	 * \brief Send the card status (CARD_STATUS_P1P2) or the operation counters
+	 * (COUNTERS_P1P2).
+	 *
+	 * The TLVs are built in ram_buf and sent with sendLargeData, a short Le
+	 * below their length gets the rest by GET RESPONSE.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param buffer The APDU buffer.
+	 *
+	 * \throw ISOException SW_REFERENCE_DATA_NOT_FOUND for any other P1P2.
+	 */
+	private void getData(APDU apdu, byte[] buffer) {
+		short p1p2 = Util.getShort(buffer, IsoHelper.OFFSET_P1);
+		if (p1p2 != CARD_STATUS_P1P2 && p1p2 != COUNTERS_P1P2) {
+			ISOException.throwIt(IsoHelper.SW_REFERENCE_DATA_NOT_FOUND);
+		}
+		checkRamBufFree();
+
+		short len = p1p2 == CARD_STATUS_P1P2 ? putCardStatus() : putCounters();
+		short le = setOutgoingLe(apdu);
+		sendLargeData(apdu, le, SOURCE_RAM_BUF, (short) 0, len);
+	}
+
+	/**
+	 * \brief Set the format of a key slot's signatures, the key stays
+	 * untouched, or announce an update of a certificate by UPDATE BINARY.
+	 *
+	 * \param apdu The apdu object in the initial state.
+	 *
+	 * \param buffer The APDU buffer. With P1 = SIGNATURE_FORMAT_REFERENCE, P2 is
+	 * the key reference and the data SIGNATURE_FORMAT_DER or
+	 * SIGNATURE_FORMAT_RAW. With P1 = CERTIFICATE_UPDATE_REFERENCE, P2 is the
+	 * certificate reference and the data the number of UPDATE BINARY commands.
+	 *
+	 * \throw ISOException SW_WRONG_DATA if the data is not a single known value.
+	 */
+	private void putData(APDU apdu, byte[] buffer) {
+		if (!adminPIN.isValidated()) {
+			ISOException.throwIt(IsoHelper.SW_PIN_VERIFICATION_REQUIRED);
+		}
+		byte p1 = buffer[IsoHelper.OFFSET_P1];
+		byte p2 = buffer[IsoHelper.OFFSET_P2];
+		short len = apdu.setIncomingAndReceive();
+		if (len != (short) 1) {
+			ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+		}
+		byte value = buffer[IsoHelper.OFFSET_CDATA];
+
+		if (p1 == SIGNATURE_FORMAT_REFERENCE) {
+			short slot = getKeySlot(p2);
+			if (value != SIGNATURE_FORMAT_DER && value != SIGNATURE_FORMAT_RAW) {
+				ISOException.throwIt(IsoHelper.SW_WRONG_DATA);
+			}
+			slot_signature_formats[slot] = value;
+		} else if (p1 == CERTIFICATE_UPDATE_REFERENCE) {
+			openCertificateUpdate(p2, value);
+		} else {
+			ISOException.throwIt(IsoHelper.SW_INCORRECT_P1P2);
+		}
+		adminPIN.reset();
+	}
+
+	/**
+	 * \brief Write the card status to ram_buf, so the host discovers the card
+	 * with a single command.
+	 *
+	 * \return The length of the card status.
+	 */
+	private short putCardStatus() {
+		ram_buf[0] = STATUS_TAG_VERSION;
+		ram_buf[1] = (byte) 2;
+		short pos = Util.setShort(ram_buf, (short) 2, APPLET_VERSION);
+		pos = putPublicKey(STATUS_TAG_AUTH_PUBLIC_KEY, AUTH_KEYPAIR_REFERENCE, pos);
+		pos = putPublicKey(STATUS_TAG_SIGN_PUBLIC_KEY, SIGNING_KEYPAIR_REFERENCE, pos);
+
+		ram_buf[pos] = STATUS_TAG_PIN_RETRIES;
+		ram_buf[(short) (pos + 1)] = (byte) 6;
+		pos = Util.setShort(ram_buf, (short) (pos + 2),
+				Util.makeShort(authPIN.getTriesRemaining(), auth_pin_retries_limit));
+		pos = Util.setShort(ram_buf, pos, Util.makeShort(signPIN.getTriesRemaining(), sign_pin_retries_limit));
+		pos = Util.setShort(ram_buf, pos, Util.makeShort(adminPIN.getTriesRemaining(), admin_pin_retries_limit));
+
+		ram_buf[pos] = STATUS_TAG_CERTIFICATE_LENGTHS;
+		ram_buf[(short) (pos + 1)] = (byte) 4;
+		pos = Util.setShort(ram_buf, (short) (pos + 2), auth_cert_len);
+		pos = Util.setShort(ram_buf, pos, sign_cert_len);
+
+		ram_buf[pos] = STATUS_TAG_RAM_BUF_SIZE;
+		ram_buf[(short) (pos + 1)] = (byte) 2;
+		return Util.setShort(ram_buf, (short) (pos + 2), (short) ram_buf.length);
+	}
+
+	/**
+	 * \brief Write the counters to ram_buf.
+	 *
+	 * \return The length of the counters.
+	 */
+	private short putCounters() {
+		countAbortedTransaction();
+
+		short signatures_len = (short) ((short) counters.length - COUNTER_SIGNATURES * COUNTER_LENGTH);
+		ram_buf[0] = COUNTERS_TAG_SIGNATURES;
+		ram_buf[1] = (byte) signatures_len;
+		short pos = Util.arrayCopyNonAtomic(counters, (short) (COUNTER_SIGNATURES * COUNTER_LENGTH), ram_buf,
+				(short) 2, signatures_len);
+
+		for (short counter = 0; counter < COUNTER_SIGNATURES; counter++) {
+			ram_buf[pos] = (byte) (COUNTERS_TAG_PIN_FAILURES + counter);
+			ram_buf[(short) (pos + 1)] = (byte) COUNTER_LENGTH;
+			pos = Util.arrayCopyNonAtomic(counters, (short) (counter * COUNTER_LENGTH), ram_buf, (short) (pos + 2),
+					COUNTER_LENGTH);
+		}
+
+		ram_buf[pos] = COUNTERS_TAG_SESSION_APDUS;
+		ram_buf[(short) (pos + 1)] = (byte) COUNTER_LENGTH;
+		return Util.arrayCopyNonAtomic(session_apdus, (short) 0, ram_buf, (short) (pos + 2), COUNTER_LENGTH);
+	}
+
+	/**
+	 * \brief Add events to a persistent counter.
+	 *
+	 * The counter is incremented in counter_scratch and copied back with a
+	 * non-atomic write, outside of any transaction.
+	 *
+	 * \param counter The index of the counter (COUNTER_*).
+	 *
+	 * \param n The number of events.
+	 */
+	private void countEvent(short counter, short n) {
+		short offset = (short) (counter * COUNTER_LENGTH);
+		Util.arrayCopyNonAtomic(counters, offset, counter_scratch, (short) 0, COUNTER_LENGTH);
+		addToCounter(counter_scratch, (short) 0, n);
+		Util.arrayCopyNonAtomic(counter_scratch, (short) 0, counters, offset, COUNTER_LENGTH);
+	}
+
+	/**
+	 * \brief Count the transaction that was begun and not committed, if any.
+	 */
+	private void countAbortedTransaction() {
+		if (transaction_marker[0] != (byte) 0) {
+			Util.arrayFillNonAtomic(transaction_marker, (short) 0, (short) 1, (byte) 0);
+			countEvent(COUNTER_TRANSACTION_ABORTS, (short) 1);
+		}
+	}
+
+	/**
+	 * \brief Add a non-negative value to a big-endian COUNTER_LENGTH bytes
+	 * unsigned counter, wrapping around at its maximum.
+	 */
+	private static void addToCounter(byte[] counter, short offset, short value) {
+		short carry = value;
+		for (short i = (short) (offset + COUNTER_LENGTH - 1); i >= offset && carry != (short) 0; i--) {
+			short sum = (short) ((counter[i] & 0xFF) + (carry & 0xFF));
+			counter[i] = (byte) sum;
+			carry = (short) (((carry >> 8) & 0xFF) + (sum >> 8));
+		}
+	}
+
+	/**
+	 * \brief Begin a transaction, marked so a tear or an abort is counted.
+	 */
+	private void beginTransaction() {
+		countAbortedTransaction();
+		Util.arrayFillNonAtomic(transaction_marker, (short) 0, (short) 1, (byte) 1);
+		JCSystem.beginTransaction();
+	}
+
+	private void commitTransaction() {
+		JCSystem.commitTransaction();
+		Util.arrayFillNonAtomic(transaction_marker, (short) 0, (short) 1, (byte) 0);
+	}
+
+	/**
+	 * \brief Write the TLV of a public key to ram_buf, empty if the keypair has
+	 * not been generated.
+	 *
+	 * \return The position behind the TLV.
+	 */
+	private short putPublicKey(byte tag, byte reference, short pos) {
+		ECPublicKey key = (ECPublicKey) keypairs[getKeySlot(reference)].getPublic();
+		short len = key.isInitialized() ? key.getW(ram_buf, (short) (pos + 2)) : (short) 0;
+		ram_buf[pos] = tag;
+		ram_buf[(short) (pos + 1)] = (byte) len;
+		return (short) (pos + 2 + len);
+	}
+
 	private void changePin(APDU apdu, byte[] buffer) {
 		byte p1 = buffer[ISO7816.OFFSET_P1];
 		byte p2 = buffer[ISO7816.OFFSET_P2];
@@ -559,8 +1665,71 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		}
 	}
 
-	private void clearRamBuf() {
-		Util.arrayFillNonAtomic(ram_buf, (short) 0, (short) ram_buf.length, (byte) 0);
+	/**
+	 * \brief Index of a ram_chaining_cache field of the current channel.
+	 */
+	private static short chaining(short field) {
+		return (short) (JCSystem.getAssignedChannel() * RAM_CHAINING_CACHE_SIZE + field);
+	}
+
+	/**
+	 * \brief Index of a runtime_fields field of the current channel.
+	 */
+	private static short runtimeField(short field) {
+		return (short) (JCSystem.getAssignedChannel() * RUNTIME_FIELDS_SIZE + field);
+	}
+
+	/**
+	 * \brief Check that no other channel has a chain or a response pending in
+	 * ram_buf, so the current channel can overwrite it.
+	 *
+	 * \throw ISOException SW_CONDITIONS_NOT_SATISFIED if another channel does.
+	 */
+	private void checkRamBufFree() {
+		short current = chaining((short) 0);
+		for (short cache = 0; cache < (short) ram_chaining_cache.length; cache += RAM_CHAINING_CACHE_SIZE) {
+			if (cache == current) {
+				continue;
+			}
+			boolean chain_pending = ram_chaining_cache[(short) (cache + RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] != 0;
+			boolean response_pending =
+					ram_chaining_cache[(short) (cache + RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] > 0
+					&& ram_chaining_cache[(short) (cache + RAM_CHAINING_CACHE_OFFSET_CURRENT_SOURCE)] == SOURCE_RAM_BUF;
+			if (chain_pending || response_pending) {
+				ISOException.throwIt(IsoHelper.SW_CONDITIONS_NOT_SATISFIED);
+			}
+		}
+	}
+
+	/**
+	 * \brief Check that no channel has a response pending in a certificate
+	 * array, which is sent directly from it, so the certificate can be
+	 * overwritten without tearing that response.
+	 *
+	 * \param source SOURCE_AUTH_CERT or SOURCE_SIGN_CERT.
+	 *
+	 * \param recvLen The amount of received bytes in ram_buf, cleared if the
+	 * certificate is being sent.
+	 *
+	 * \throw ISOException SW_CONDITIONS_NOT_SATISFIED if a channel does.
+	 */
+	private void checkCertificateNotSending(short source, short recvLen) {
+		for (short cache = 0; cache < (short) ram_chaining_cache.length; cache += RAM_CHAINING_CACHE_SIZE) {
+			if (ram_chaining_cache[(short) (cache + RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] > 0
+					&& ram_chaining_cache[(short) (cache + RAM_CHAINING_CACHE_OFFSET_CURRENT_SOURCE)] == source) {
+				clearRamBuf(recvLen);
+				ISOException.throwIt(IsoHelper.SW_CONDITIONS_NOT_SATISFIED);
+			}
+		}
+	}
+
+	/**
+	 * \brief Clear the beginning of ram_buf that received data.
+	 *
+	 * \param len The amount of bytes that were used.
+	 */
+	private void clearRamBuf(short len) {
+		Util.arrayFillNonAtomic(ram_buf, (short) 0, len, (byte) 0);
 	}
 
 	/**
@@ -584,50 +1753,98 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 	}
 
 	/**
-	 * \brief Send the data from ram_buf, using either extended APDUs or GET
-	 * RESPONSE.
+	 * \brief Set the APDU to the outgoing state and return how many bytes the host
+	 * accepts in the response.
+	 *
+	 * Platforms differ in what setOutgoing() returns when Le is missing, Le=0000
+	 * or Le is above 32767. A negative short can only come from an extended Le, so
+	 * it is capped to 32767, 0 is taken as the short maximum of 256 bytes.
+	 * Without extended APDUs every Le is capped to 256 bytes.
+	 *
+	 * \param apdu The APDU object in the initial or incoming state.
+	 *
+	 * \return Maximum length of the response data.
+	 */
+	private short setOutgoingLe(APDU apdu) {
+		short le = apdu.setOutgoing();
+		if (le < (short) 0) {
+			le = MAX_EXTENDED_LE;
+		} else if (le == (short) 0) {
+			le = MAX_SHORT_LE;
+		}
+		if (!extended_apdu && le > MAX_SHORT_LE) {
+			le = MAX_SHORT_LE;
+		}
+		return le;
+	}
+
+	/**
+	 * \brief Get the array identified by one of the SOURCE_* constants.
+	 */
+	private byte[] getSourceArray(short source) {
+		switch (source) {
+			case SOURCE_AUTH_CERT:
+				return auth_cert;
+			case SOURCE_SIGN_CERT:
+				return sign_cert;
+			default:
+				return ram_buf;
+		}
+	}
+
+	/**
+	 * \brief Send the data directly from ram_buf or a certificate array, using
+	 * either extended APDUs or GET RESPONSE.
+	 *
+	 * The data is not staged in ram_buf, only the source, position and amount of
+	 * remaining bytes are remembered in ram_chaining_cache for GET RESPONSE.
+	 *
+	 * As many bytes as the host asked for are sent at once, so an extended Le
+	 * (the host and reader support extended APDUs) gets all the data in one
+	 * response, a short Le gets 256 bytes per GET RESPONSE at most.
 	 *
 	 * \param apdu The APDU object, in STATE_OUTGOING state.
 	 *
-	 * \param pos The position in ram_buf at where the data begins
+	 * \param le The Le returned by setOutgoing().
+	 *
+	 * \param source The array the data is sent from (one of SOURCE_*).
+	 *
+	 * \param pos The position in the source array at where the data begins
 	 *
 	 * \param len The length of the data to be sent. If zero, 9000 will be
 	 * returned
 	 */
-	private void sendLargeData(APDU apdu, short pos, short len) {
+	private void sendLargeData(APDU apdu, short le, short source, short pos, short len) {
 		if (len <= 0) {
-			ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING] = 0;
-			ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = 0;
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] = 0;
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = 0;
 			ISOException.throwIt(IsoHelper.SW_NO_ERROR);
 		}
 
-		if ((short) (pos + len) > RAM_BUF_SIZE) {
+		byte[] data = getSourceArray(source);
+		if ((short) (pos + len) > (short) data.length) {
 			ISOException.throwIt(IsoHelper.SW_UNKNOWN);
 		}
 
-		if (USE_EXTENDED_APDU) {
-			apdu.setOutgoingLength(len);
-			apdu.sendBytesLong(ram_buf, pos, len);
+		// Send directly from the source array, then prepare for chaining.
+		short sendLen = len > le ? le : len;
+		apdu.setOutgoingLength(sendLen);
+		apdu.sendBytesLong(data, pos, sendLen);
+		short bytesLeft = (short) (len - sendLen);
+		if (bytesLeft > 0) {
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] = bytesLeft;
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = (short) (pos + sendLen);
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_SOURCE)] = source;
+			// 6100 = 256 or more bytes remaining
+			short getRespLen = bytesLeft > 255 ? 0 : bytesLeft;
+			ISOException.throwIt((short) (IsoHelper.SW_BYTES_REMAINING_00 | getRespLen));
+			// The next part of the data stays in the source array, metadata is in
+			// ram_chaining_cache.
+			// It can be fetched by the host via GET RESPONSE.
 		} else {
-			// We have 255 Bytes send-capacity per APDU.
-			// Send directly from ram_buf, then prepare for chaining.
-			short sendLen = len > 255 ? 255 : len;
-			apdu.setOutgoingLength(sendLen);
-			apdu.sendBytesLong(ram_buf, pos, sendLen);
-			short bytesLeft = (short) (len - sendLen);
-			if (bytesLeft > 0) {
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING] = bytesLeft;
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = (short) (pos + sendLen);
-				short getRespLen = bytesLeft > 255 ? 255 : bytesLeft;
-				ISOException.throwIt((short) (IsoHelper.SW_BYTES_REMAINING_00 | getRespLen));
-				// The next part of the data is now in ram_buf, metadata is in
-				// ram_chaining_cache.
-				// It can be fetched by the host via GET RESPONSE.
-			} else {
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING] = 0;
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = 0;
-				ISOException.throwIt(IsoHelper.SW_NO_ERROR);
-			}
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] = 0;
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = 0;
+			ISOException.throwIt(IsoHelper.SW_NO_ERROR);
 		}
 	}
 
@@ -650,6 +1867,25 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		ISOException.throwIt(IsoHelper.SW_NO_ERROR);
 	}
 
+	/**
+	 * \brief Send FCI of a certificate file with the file size set to the length of
+	 * the stored certificate.
+	 *
+	 * \param apdu The APDU object.
+	 *
+	 * \param fci FCI template of the file (FileHelper.fci_aace or fci_ddce).
+	 *
+	 * \param file_size The amount of bytes that can be read from the file.
+	 */
+	private void sendFci(APDU apdu, byte[] fci, short file_size) {
+		byte[] buffer = apdu.getBuffer();
+		Util.arrayCopyNonAtomic(fci, (short) 0, buffer, (short) 0, (short) fci.length);
+		Util.setShort(buffer, FileHelper.FCI_OFFSET_FILE_SIZE, file_size);
+		apdu.setOutgoingAndSend((short) 0, (short) fci.length);
+		// Exit normal code flow
+		ISOException.throwIt(IsoHelper.SW_NO_ERROR);
+	}
+
 	/**
 	 * \brief Receive the data sent by chaining or extended apdus and store it in
 	 * ram_buf.
@@ -662,21 +1898,26 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 	 *
 	 * \param apdu The apdu object in the initial state.
 	 *
-	 * \throw ISOException SW_WRONG_LENGTH
+	 * \throw ISOException SW_WRONG_LENGTH if the data does not fit in ram_buf or
+	 * is an extended APDU and extended APDUs are disabled.
 	 */
 	private short doChainingOrExtAPDU(APDU apdu) throws ISOException {
+		checkRamBufFree();
 		byte[] buf = apdu.getBuffer();
 		short recvLen = apdu.setIncomingAndReceive();
 		short offset_cdata = apdu.getOffsetCdata();
 
 		// Receive data (short or extended).
 		while (recvLen > 0) {
-			if ((short) (ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] + recvLen) > RAM_BUF_SIZE) {
+			if ((short) (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)]
+					+ recvLen) > (short) ram_buf.length
+					|| (!extended_apdu && apdu.getIncomingLength() > MAX_SHORT_LC)) {
+				abortChain();
 				ISOException.throwIt(IsoHelper.SW_WRONG_LENGTH);
 			}
 			Util.arrayCopyNonAtomic(buf, offset_cdata, ram_buf,
-					ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS], recvLen);
-			ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] += recvLen;
+					ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)], recvLen);
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] += recvLen;
 			recvLen = apdu.receiveBytes(offset_cdata);
 		}
 
@@ -692,39 +1933,50 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 			// Chain has ended or no chaining.
 			// We did receive the data, everything is fine.
 			// Reset the current position in ram_buf.
-			recvLen = (short) (recvLen + ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS]);
-			ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS] = 0;
+			recvLen = (short) (recvLen + ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)]);
+			ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = 0;
 			return recvLen;
 		}
 	}
 
+	/**
+	 * \brief Abort the whole chain of the current channel, so the next command
+	 * can start a new one.
+	 */
+	private void abortChain() {
+		ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)] = 0;
+		ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_INS)] = 0;
+		ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_P1P2)] = 0;
+	}
+
 	/**
 	 * \brief Process the GET RESPONSE APDU (INS=C0).
 	 *
-	 * If there is content available in ram_buf that could not be sent in the last
+	 * If there is content available that could not be sent in the last
 	 * operation,
-	 * the host should use this APDU to get the data. The data is cached in ram_buf.
+	 * the host should use this APDU to get the data. The data is read from the
+	 * array remembered in ram_chaining_cache.
+	 *
+	 * Any Le is accepted: Le=00 or a Le larger than the remaining data returns
+	 * as much as is available, a smaller Le returns Le bytes and 61xx again.
 	 *
 	 * \param apdu The GET RESPONSE apdu.
 	 *
-	 * \throw ISOException SW_CONDITIONS_NOT_SATISFIED, SW_UNKNOWN,
-	 * SW_CORRECT_LENGTH.
+	 * \throw ISOException SW_CONDITIONS_NOT_SATISFIED, SW_UNKNOWN.
 	 */
 	private void getResponse(APDU apdu) {
-		short le = apdu.setOutgoing();
+		short le = setOutgoingLe(apdu);
 
-		if (ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING] <= (short) 0) {
+		if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] <= (short) 0) {
 			ISOException.throwIt(IsoHelper.SW_CONDITIONS_NOT_SATISFIED);
 		}
-
-		short expectedLe = ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING] > 255 ? 255
-				: ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING];
-		if (le != expectedLe) {
-			ISOException.throwIt((short) (IsoHelper.SW_CORRECT_LENGTH_00 | expectedLe));
+		if (ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)] <= le) {
+			countEvent(COUNTER_GET_RESPONSE_CHAINS, (short) 1);
 		}
 
-		sendLargeData(apdu, ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_CURRENT_POS],
-				ram_chaining_cache[RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING]);
+		sendLargeData(apdu, le, ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_SOURCE)],
+				ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_CURRENT_POS)],
+				ram_chaining_cache[chaining(RAM_CHAINING_CACHE_OFFSET_BYTES_REMAINING)]);
 	}
 
 	public static interface IsoHelper extends javacard.framework.ISO7816 {
@@ -860,6 +2112,9 @@ public class InfinitEIDApplet extends Applet implements ExtendedLength {
 		public final static short FID_AACE = (short) 0xAACE;
 		public final static short FID_DDCE = (short) 0xDDCE;
 
+		// Offset of the file size value (tag 85) in fci_aace and fci_ddce
+		public final static short FCI_OFFSET_FILE_SIZE = (short) 11;
+
 		// FCI bytes;
 		// TODO: change fci according to
 		// https://cardwerk.com/smart-card-standard-iso7816-4-section-5-basic-organizations/
@@ -0,0 +1,226 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import asyncio
+from concurrent.futures import ThreadPoolExecutor
+from dataclasses import dataclass
+from functools import lru_cache
+from typing import BinaryIO, Callable, Literal
+
+from . import APDU_LIST, util
+from .connector import (
+    SHORT_MAX_LC,
+    SHORT_MAX_LE,
+    connect_readers,
+    encode_apdu,
+    get_ATR,
+    send,
+)
+
+
+@dataclass(frozen=True)
+class CommandTemplate:
+    """APDU template of apdulist.yaml parsed once: the header (and the fixed
+    data of commands such as SELECT), Lc, Le and the data are added per
+    call."""
+
+    header: tuple[int, ...]
+
+    def build(self, data: list | None = None, le: int | None = None) -> list:
+        """Same APDU as util.build_apdu of the template."""
+        if data is None and le is None:
+            return list(self.header)
+
+        extended = (data is not None and len(data) > SHORT_MAX_LC) or (
+            le is not None and le > SHORT_MAX_LE
+        )
+        return encode_apdu(list(self.header), data, le, extended)
+
+
+@lru_cache(maxsize=None)
+def compile_template(template: str) -> CommandTemplate:
+    return CommandTemplate(tuple(util.build_apdu(template)))
+
+
+COMMANDS = {
+    name: compile_template(template) for name, template in APDU_LIST.items()
+}
+
+
+class AsyncCard:
+    """Asyncio client of one card.
+
+    Every command runs on the card's own worker thread, which is the only
+    thread that touches the connection, in the order the methods are
+    called. The methods do not block: they queue the command and return an
+    asyncio future, so the caller can parse the previous response, verify
+    a signature or talk to other cards while the card works, e.g.
+
+        certificate = card.read_certificate("auth")
+        signature = card.authenticate_with_pin(pin, hash_to_be_signed)
+        parse(await certificate)  # the card is computing the signature
+
+    Commands that depend on each other (PIN verification and the signature
+    it allows, SELECT and READ BINARY) are queued by the same task, or run
+    together by run(), so commands of other tasks cannot get between them.
+    """
+
+    def __init__(self, conn):
+        self.conn = conn
+        self.reader = str(conn.getReader())
+        # the queue of the single worker thread is the command queue
+        self.worker = ThreadPoolExecutor(
+            max_workers=1, thread_name_prefix=self.reader
+        )
+        self.pending = 0
+
+    def run(self, function: Callable, *args) -> asyncio.Future:
+        """Queue function(conn, *args), e.g. a function of util, as one
+        command."""
+        future = asyncio.get_running_loop().run_in_executor(
+            self.worker, function, self.conn, *args
+        )
+        self.pending += 1
+        future.add_done_callback(self._done)
+        return future
+
+    def _done(self, _future: asyncio.Future):
+        self.pending -= 1
+
+    def send(
+        self, command: str, data: list | None = None, le: int | None = None
+    ) -> asyncio.Future:
+        """Queue the command of apdulist.yaml, the future is the response
+        data (GET RESPONSE and command chaining are done by connector.send),
+        a status word other than 9000 raises APDUError."""
+        return self.run(send, COMMANDS[command].build(data, le))
+
+    def select(self) -> asyncio.Future:
+        return self.send("select_main_aid")
+
+    def get_atr(self) -> asyncio.Future:
+        return self.run(get_ATR)
+
+    def verify_pin(
+        self, reference: Literal["admin", "auth", "sign"], pin
+    ) -> asyncio.Future:
+        return self.send(f"verify_{reference}_pin", util.encode_pin(pin))
+
+    def get_pin_retries(
+        self, reference: Literal["admin", "auth", "sign"]
+    ) -> asyncio.Future:
+        """Future of [tries remaining, limit]."""
+        return self.send(f"get_{reference}_pin_retries")
+
+    def get_public_key(
+        self, operation: Literal["auth", "sign"]
+    ) -> asyncio.Future:
+        """Future of the public key as the uncompressed EC point, decoding is
+        left to the caller."""
+        return self.send(f"get_{operation}_public_key")
+
+    def read_certificate(
+        self, operation: Literal["auth", "sign"]
+    ) -> asyncio.Future:
+        """Future of the DER encoded certificate, selected and read as one
+        command."""
+        return self.run(_read_certificate, operation)
+
+    def authenticate(self, hash_to_be_signed) -> asyncio.Future:
+        """INTERNAL AUTHENTICATE, the auth PIN has to be verified before."""
+        return self.send("internal_authenticate", list(hash_to_be_signed))
+
+    def sign(self, hash_to_be_signed) -> asyncio.Future:
+        """PERFORM SIGNATURE, the sign PIN has to be verified before."""
+        return self.send("perform_signature", list(hash_to_be_signed))
+
+    def authenticate_with_pin(self, pin, hash_to_be_signed) -> asyncio.Future:
+        return self.send(
+            "internal_authenticate_with_pin",
+            util.build_input_template(pin, hash_to_be_signed),
+        )
+
+    def sign_with_pin(self, pin, hash_to_be_signed) -> asyncio.Future:
+        return self.send(
+            "perform_signature_with_pin",
+            util.build_input_template(pin, hash_to_be_signed),
+        )
+
+    def sign_batch(
+        self,
+        hashes: list[bytes],
+        signature_format: Literal["der", "raw"] = "der",
+    ) -> asyncio.Future:
+        """Future of the signatures, see util.perform_batch_signature."""
+        return self.run(util.perform_batch_signature, hashes, signature_format)
+
+    def sign_document(self, document: BinaryIO) -> asyncio.Future:
+        """See util.sign_document, the document is read on the worker."""
+        return self.run(util.sign_document, document)
+
+    def get_card_status(self) -> asyncio.Future:
+        return self.run(util.get_card_status)
+
+    def get_card_counters(self) -> asyncio.Future:
+        return self.run(util.get_card_counters)
+
+    async def close(self):
+        """Disconnect after the queued commands."""
+        await self.run(lambda conn: conn.disconnect())
+        self.worker.shutdown()
+
+
+def _read_certificate(conn, operation: Literal["auth", "sign"]) -> bytes:
+    send(conn, COMMANDS[f"select_{operation}_cert"].build())
+    return bytes(util.read_certificate(conn))
+
+
+class AsyncCardPool:
+    """AsyncCard of every connected reader (or of the simulator), requests
+    are spread by card(), which picks the card with the fewest queued
+    commands."""
+
+    def __init__(self, connections: list):
+        self.cards = [AsyncCard(conn) for conn in connections]
+
+    @classmethod
+    async def connect(cls, log_apdu: bool | None = None) -> "AsyncCardPool":
+        connections = await asyncio.get_running_loop().run_in_executor(
+            None, connect_readers, log_apdu
+        )
+        return cls(connections)
+
+    def card(self) -> AsyncCard:
+        if not self.cards:
+            raise RuntimeError("[!] No card connected")
+        return min(self.cards, key=lambda card: card.pending)
+
+    async def close(self):
+        await asyncio.gather(*(card.close() for card in self.cards))
+
+    async def __aenter__(self) -> "AsyncCardPool":
+        return self
+
+    async def __aexit__(self, *_exception):
+        await self.close()
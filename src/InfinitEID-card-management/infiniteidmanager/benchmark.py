@@ -0,0 +1,325 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import csv
+import io
+import json
+import math
+import os
+import time
+from concurrent.futures import ThreadPoolExecutor
+from dataclasses import dataclass
+from hashlib import sha256
+from typing import Callable
+
+from . import APDU_LIST, CONFIG, util
+from .connector import get_ATR, send
+from .util import build_apdu, encode_pin, read_certificate
+
+ORIGIN = "https://example.com"
+# document hashed on the card by sign_document, 17 chained commands
+DOCUMENT_SIZE = 4096
+HISTOGRAM_BUCKETS = 10
+# key generated by keygen, the first additional key slot, so the auth and
+# sign keys stay untouched
+KEYGEN_KEY_REFERENCE = 3
+
+
+@dataclass
+class Operation:
+    # called before every iteration, not measured
+    prepare: Callable | None
+    # the measured command(s)
+    run: Callable
+
+
+def web_eid_hash() -> list:
+    """Hash signed during Web-eID authentication of ORIGIN."""
+    origin_hash = sha256(ORIGIN.encode("utf-8")).digest()
+    nonce_hash = sha256(os.urandom(32)).digest()
+    return list(sha256(origin_hash + nonce_hash).digest())
+
+
+PIN_CONFIG_KEYS = {
+    "admin": "ADMIN_PIN",
+    "auth": "USER_AUTH_PIN",
+    "sign": "USER_SIGN_PIN",
+}
+
+
+def verify(conn, reference: str):
+    pin = encode_pin(CONFIG[PIN_CONFIG_KEYS[reference]])
+    send(
+        conn,
+        build_apdu(APDU_LIST[f"verify_{reference}_pin"], data=pin),
+    )
+
+
+def select(conn):
+    send(conn, build_apdu(APDU_LIST["select_main_aid"]))
+
+
+def authenticate(conn):
+    send(
+        conn,
+        build_apdu(APDU_LIST["internal_authenticate"], data=web_eid_hash()),
+    )
+
+
+def sign(conn):
+    send(
+        conn,
+        build_apdu(APDU_LIST["perform_signature"], data=web_eid_hash()),
+    )
+
+
+def authenticate_with_pin(conn):
+    util.authenticate_with_pin(conn, CONFIG["USER_AUTH_PIN"], web_eid_hash())
+
+
+def sign_with_pin(conn):
+    util.sign_with_pin(conn, CONFIG["USER_SIGN_PIN"], web_eid_hash())
+
+
+def sign_document(conn):
+    util.sign_document(conn, io.BytesIO(os.urandom(DOCUMENT_SIZE)))
+
+
+def certificate(conn):
+    send(conn, build_apdu(APDU_LIST["select_auth_cert"]))
+    read_certificate(conn)
+
+
+def keygen(conn):
+    send(conn, build_apdu(APDU_LIST["generate_additional_keypair"]))
+
+
+def pin_retries(conn):
+    send(conn, build_apdu(APDU_LIST["get_auth_pin_retries"]))
+
+
+def card_status(conn):
+    util.get_card_status(conn)
+
+
+OPERATIONS = {
+    "select": Operation(None, select),
+    "verify": Operation(None, lambda conn: verify(conn, "auth")),
+    "authenticate": Operation(lambda conn: verify(conn, "auth"), authenticate),
+    "sign": Operation(lambda conn: verify(conn, "sign"), sign),
+    "authenticate_with_pin": Operation(None, authenticate_with_pin),
+    "sign_with_pin": Operation(None, sign_with_pin),
+    "sign_document": Operation(
+        lambda conn: verify(conn, "sign"), sign_document
+    ),
+    "certificate": Operation(None, certificate),
+    "keygen": Operation(lambda conn: verify(conn, "admin"), keygen),
+    "pin_retries": Operation(None, pin_retries),
+    "card_status": Operation(None, card_status),
+}
+# key generation writes to EEPROM and takes seconds, so it has to be
+# requested explicitly
+DEFAULT_OPERATIONS = [name for name in OPERATIONS if name != "keygen"]
+
+
+def percentile(sorted_samples: list, percent: float) -> float:
+    """Nearest-rank percentile."""
+    rank = math.ceil(percent / 100 * len(sorted_samples))
+    return sorted_samples[max(rank, 1) - 1]
+
+
+def histogram(sorted_samples: list) -> list[dict]:
+    low, high = sorted_samples[0], sorted_samples[-1]
+    width = (high - low) / HISTOGRAM_BUCKETS or 1
+    counts = [0] * HISTOGRAM_BUCKETS
+    for sample in sorted_samples:
+        counts[min(int((sample - low) / width), HISTOGRAM_BUCKETS - 1)] += 1
+    return [
+        {"from": low + i * width, "to": low + (i + 1) * width, "count": count}
+        for i, count in enumerate(counts)
+    ]
+
+
+def summarize(samples: list) -> dict:
+    """Statistics of latencies in seconds."""
+    sorted_samples = sorted(samples)
+    return {
+        "count": len(samples),
+        "mean": sum(samples) / len(samples),
+        "min": sorted_samples[0],
+        "p50": percentile(sorted_samples, 50),
+        "p90": percentile(sorted_samples, 90),
+        "p99": percentile(sorted_samples, 99),
+        "max": sorted_samples[-1],
+        "histogram": histogram(sorted_samples),
+        "samples": samples,
+    }
+
+
+def measure(conn, operation: Operation, iterations: int, warmup: int):
+    samples = []
+    for i in range(warmup + iterations):
+        if operation.prepare is not None:
+            operation.prepare(conn)
+
+        start_time = time.perf_counter()
+        operation.run(conn)
+        duration = time.perf_counter() - start_time
+
+        if i >= warmup:
+            samples.append(duration)
+    return samples
+
+
+def set_signature_format(conn, signature_format: str):
+    for operation in ["auth", "sign"]:
+        util.set_signature_format(conn, operation, signature_format)
+
+
+def benchmark_card(
+    conn,
+    operations: list[str],
+    iterations: int,
+    warmup: int,
+    signature_format: str = "der",
+) -> dict:
+    select(conn)
+    counters_before = util.get_card_counters(conn)
+    if signature_format != "der":
+        set_signature_format(conn, signature_format)
+    results = {}
+    try:
+        for name in operations:
+            # the signatures are counted per key slot the card has
+            if (
+                name == "keygen"
+                and KEYGEN_KEY_REFERENCE not in counters_before["signatures"]
+            ):
+                print(
+                    f"[!] Skipping keygen on {conn.getReader()}, the card has",
+                    f"no key slot {KEYGEN_KEY_REFERENCE} (key_slot_count",
+                    "install parameter)",
+                )
+                continue
+            print(f"[>] Measuring {name} on {conn.getReader()}")
+            results[name] = summarize(
+                measure(conn, OPERATIONS[name], iterations, warmup)
+            )
+    finally:
+        # Web-eID expects DER signatures
+        if signature_format != "der":
+            set_signature_format(conn, "der")
+    return {
+        "atr": get_ATR(conn).replace(" ", ""),
+        "reader": str(conn.getReader()),
+        "operations": results,
+        # on-card workload of the measurement
+        "card_counters": counters_difference(
+            counters_before, util.get_card_counters(conn)
+        ),
+    }
+
+
+def counters_difference(before: dict, after: dict) -> dict:
+    return {
+        name: (
+            {key: count - before[name][key] for key, count in value.items()}
+            if isinstance(value, dict)
+            else value - before[name]
+        )
+        for name, value in after.items()
+    }
+
+
+def run_benchmark(
+    connections: list,
+    operations: list[str] | None = None,
+    iterations: int = 100,
+    warmup: int = 10,
+    signature_format: str = "der",
+) -> dict:
+    """Measure the operations on all cards at the same time,
+    one thread per reader.
+
+    With signature_format "raw" the auth and sign keys are switched to raw
+    r || s signatures for the measurement and back to DER afterwards."""
+    operations = operations or DEFAULT_OPERATIONS
+    with ThreadPoolExecutor(max_workers=len(connections)) as executor:
+        cards = list(
+            executor.map(
+                lambda conn: benchmark_card(
+                    conn, operations, iterations, warmup, signature_format
+                ),
+                connections,
+            )
+        )
+    return {
+        "timestamp": int(time.time()),
+        "iterations": iterations,
+        "warmup": warmup,
+        "signature_format": signature_format,
+        "cards": cards,
+    }
+
+
+def to_json(report: dict) -> str:
+    return json.dumps(report, indent=2)
+
+
+CSV_COLUMNS = ["count", "mean", "min", "p50", "p90", "p99", "max"]
+
+
+def to_csv(report: dict) -> str:
+    """One row per card and operation, latencies in seconds."""
+    output = io.StringIO()
+    writer = csv.writer(output)
+    writer.writerow(["atr", "reader", "operation"] + CSV_COLUMNS)
+    for card in report["cards"]:
+        for name, result in card["operations"].items():
+            writer.writerow(
+                [card["atr"], card["reader"], name]
+                + [result[column] for column in CSV_COLUMNS]
+            )
+    return output.getvalue()
+
+
+def print_report(report: dict):
+    for card in report["cards"]:
+        print(
+            f"[+] {card['atr']} ({card['reader']}),",
+            f"{report.get('signature_format', 'der')} signatures,",
+            "milliseconds:",
+        )
+        print(
+            f"    {'operation':14}"
+            + "".join(f"{column:>9}" for column in CSV_COLUMNS[1:])
+        )
+        for name, result in card["operations"].items():
+            print(
+                f"    {name:14}"
+                + "".join(
+                    f"{result[column] * 1000:9.2f}"
+                    for column in CSV_COLUMNS[1:]
+                )
+            )
@@ -0,0 +1,96 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import os
+import tempfile
+from hashlib import sha256
+from pathlib import Path
+from typing import Literal
+
+from . import APDU_LIST, CONFIG
+from .connector import get_ATR, send
+from .util import build_apdu, read_der_length
+
+
+def get_cache_directory() -> Path:
+    directory = Path(
+        CONFIG.get("CERTIFICATE_CACHE_DIRECTORY", "~/.cache/infiniteid")
+    ).expanduser()
+    directory.mkdir(parents=True, exist_ok=True)
+    return directory
+
+
+def get_certificate_fingerprint(
+    conn, operation: Literal["auth", "sign"]
+) -> bytes | None:
+    """SHA-256 of the certificate stored on the card,
+    None if there is no certificate."""
+    fingerprint = send(
+        conn,
+        build_apdu(APDU_LIST[f"get_{operation}_certificate_fingerprint"]),
+        False,
+    )
+    return bytes(fingerprint) if fingerprint else None
+
+
+def get_cached_certificate(
+    conn, operation: Literal["auth", "sign"]
+) -> list | None:
+    """Get the certificate from the disk cache, reading it from the card
+    only if its fingerprint is not cached yet.
+
+    Cached files are keyed by the card's ATR and the fingerprint the card
+    computed when the certificate was stored. A file whose content does
+    not match its fingerprint is ignored and replaced.
+
+    Returns None if there is no certificate on the card."""
+    fingerprint = get_certificate_fingerprint(conn, operation)
+    if fingerprint is None:
+        return None
+
+    cache_file = get_cache_directory() / (
+        f"{get_ATR(conn).replace(' ', '')}_{fingerprint.hex()}.der"
+    )
+    if cache_file.is_file():
+        certificate = cache_file.read_bytes()
+        if sha256(certificate).digest() == fingerprint:
+            return list(certificate)
+
+    certificate = list(
+        send(conn, build_apdu(APDU_LIST[f"get_{operation}_certificate"]))
+    )
+    certificate = certificate[: read_der_length(certificate)]
+    assert sha256(bytes(certificate)).digest() == fingerprint, (
+        "Certificate read from card does not match its fingerprint"
+    )
+
+    # write to a temporary file first, so a concurrent reader never sees
+    # a partially written certificate
+    with tempfile.NamedTemporaryFile(
+        dir=cache_file.parent, delete=False
+    ) as file:
+        file.write(bytes(certificate))
+    os.replace(file.name, cache_file)
+
+    return certificate
@@ -26,9 +26,29 @@ from smartcard.CardConnectionObserver import CardConnectionObserver
 from smartcard.CardConnection import CardConnection
 from smartcard.CardRequest import CardRequest
 from smartcard.CardType import AnyCardType
+from smartcard.Exceptions import CardConnectionException, NoCardException
+from smartcard.scard import SCARD_W_REMOVED_CARD, SCARD_W_RESET_CARD
+from smartcard.System import readers
 from smartcard.util import toHexString
 
 from . import CONFIG
+from .metrics import get_metrics_observer
+from .simulator import SimulatorConnection, connect_simulator
+
+# maximum data and response length of a short APDU
+SHORT_MAX_LC = 255
+SHORT_MAX_LE = 256
+# CLA bit of all but the last command of a chain
+CLA_CHAINING = 0x10
+
+
+class APDUError(RuntimeError):
+    """The card answered with an error status word."""
+
+    def __init__(self, message: str, sw1: int, sw2: int):
+        super().__init__(message)
+        self.sw1 = sw1
+        self.sw2 = sw2
 
 
 class ConsoleCardConnectionObserver(CardConnectionObserver):
@@ -65,7 +85,80 @@ class ConsoleCardConnectionObserver(CardConnectionObserver):
                 )
 
 
-def connect(log_apdu: bool | None = None) -> CardConnection:
+class CardSession:
+    """Card connection that negotiates the protocol once and stays connected.
+
+    Provides the part of CardConnection interface used by this package, so it
+    can be passed wherever a connection is expected. The connection is only
+    re-established when the card reports it was reset or removed, the applet
+    selected by the last SELECT by AID is then selected again."""
+
+    def __init__(self, connection: CardConnection):
+        self.connection = connection
+        self.protocol = None
+        self.select_apdu: list | None = None
+        # cleared when the reader fails to transmit an extended APDU, a card
+        # installed without extended APDUs needs EXTENDED_APDU disabled
+        self.extended: bool = CONFIG.get("EXTENDED_APDU", False)
+
+    def connect(self):
+        try:
+            self.connection.connect(CardConnection.T0_protocol)
+            self.protocol = CardConnection.T0_protocol
+        except CardConnectionException:
+            self.connection.connect(CardConnection.T1_protocol)
+            self.protocol = CardConnection.T1_protocol
+
+    def reconnect(self):
+        print("[.] Card was reset or removed, reconnecting")
+        self.connection.disconnect()
+        self.connect()
+        if self.select_apdu is not None:
+            self.connection.transmit(self.select_apdu, self.protocol)
+
+    def disconnect(self):
+        self.connection.disconnect()
+        self.protocol = None
+
+    def transmit(self, apdu: list) -> tuple[list, int, int]:
+        if self.protocol is None:
+            self.connect()
+
+        # remember SELECT by AID so the applet can be selected after a reset
+        if apdu[1] == 0xA4 and apdu[2] == 0x04:
+            self.select_apdu = apdu
+
+        try:
+            return self.connection.transmit(apdu, self.protocol)
+        except CardConnectionException as exception:
+            if getattr(exception, "hresult", None) not in (
+                SCARD_W_RESET_CARD,
+                SCARD_W_REMOVED_CARD,
+            ):
+                raise
+        self.reconnect()
+        return self.connection.transmit(apdu, self.protocol)
+
+    def addObserver(self, observer: CardConnectionObserver):
+        self.connection.addObserver(observer)
+
+    def getATR(self) -> list:
+        if self.protocol is None:
+            self.connect()
+        return self.connection.getATR()
+
+    def getReader(self) -> str:
+        return self.connection.getReader()
+
+
+def connect(
+    log_apdu: bool | None = None,
+) -> CardSession | SimulatorConnection:
+    if CONFIG.get("CARD_BACKEND", "pcsc") == "simulator":
+        conn = connect_simulator()
+        add_observers(conn, log_apdu)
+        return conn
+
     # request any card type and wait for CARD_CONNECTION_TIMEOUT_SECONDS
     print(
         f"[.] Waiting {CONFIG['CARD_CONNECTION_TIMEOUT_SECONDS']}",
@@ -77,40 +170,129 @@ def connect(log_apdu: bool | None = None) -> CardConnection:
     )
     cardservice = cardrequest.waitforcard()
     print("[+] Card connected")
-    conn = cardservice.connection
+    conn = CardSession(cardservice.connection)
+    add_observers(conn, log_apdu)
+    return conn
 
-    # create an instance of our observer and attach to the connection
+
+def add_observers(conn, log_apdu: bool | None = None):
+    # the console observer will trace on the console
     if log_apdu is None and CONFIG["LOG_APDU"] or log_apdu:
         conn.addObserver(ConsoleCardConnectionObserver())
 
-    # the observer will trace on the console
-    return conn
+    # the metrics observer is shared by all connections
+    metrics_observer = get_metrics_observer()
+    if metrics_observer is not None:
+        conn.addObserver(metrics_observer)
+
+
+def connect_readers(log_apdu: bool | None = None) -> list:
+    """Connect to every reader that has a card inserted, or to the simulator
+    if it is the configured backend."""
+    if CONFIG.get("CARD_BACKEND", "pcsc") == "simulator":
+        return [connect(log_apdu)]
+
+    sessions = []
+    for reader in readers():
+        conn = CardSession(reader.createConnection())
+        try:
+            conn.connect()
+        except (CardConnectionException, NoCardException):
+            continue
+        print("[+] Card connected in", reader)
+        add_observers(conn, log_apdu)
+        sessions.append(conn)
+    return sessions
+
+
+def encode_apdu(
+    header: list,
+    data: list | None = None,
+    le: int | None = None,
+    extended=False,
+) -> list:
+    """Encode command APDU, Le = 256 (short) or 65536 (extended) is
+    encoded as zeros."""
+    apdu = list(header)
+    if extended:
+        if data:
+            apdu += [0x00] + list(len(data).to_bytes(2, "big")) + list(data)
+        if le is not None:
+            apdu += ([] if data else [0x00]) + [(le >> 8) & 0xFF, le & 0xFF]
+    else:
+        if data:
+            apdu += [len(data)] + list(data)
+        if le is not None:
+            apdu += [le & 0xFF]
+    return apdu
+
+
+def decode_apdu(apdu: list) -> tuple[list, list, int | None]:
+    """Split short or extended command APDU into header, data and Le."""
+    header, body = list(apdu[:4]), list(apdu[4:])
+    if not body:
+        return header, [], None
+    if len(body) == 1:
+        return header, [], body[0] or SHORT_MAX_LE
+
+    # short APDU with data
+    if body[0] != 0x00:
+        data, rest = body[1 : 1 + body[0]], body[1 + body[0] :]
+        return header, data, (rest[0] or SHORT_MAX_LE) if rest else None
+
+    # extended APDU
+    if len(body) == 3:
+        return header, [], (body[1] << 8 | body[2]) or 0x10000
+    length = body[1] << 8 | body[2]
+    data, rest = body[3 : 3 + length], body[3 + length :]
+    return header, data, ((rest[0] << 8 | rest[1]) or 0x10000) if rest else None
 
 
 def send(conn, apdu, throw_exception=True) -> list:
+    """Send the command in the form the card and reader support: short APDU
+    if it fits, otherwise one extended APDU, or command chaining
+    (data split into 255 bytes long commands, responses longer than 256
+    bytes fetched with GET RESPONSE) if extended APDUs are not supported."""
+    header, data, le = decode_apdu(apdu)
+    if len(data) <= SHORT_MAX_LC and (le or 0) <= SHORT_MAX_LE:
+        return transmit(conn, encode_apdu(header, data, le), throw_exception)
+
+    if getattr(conn, "extended", CONFIG.get("EXTENDED_APDU", False)):
+        # only a transport failure means the reader cannot pass extended
+        # APDUs, a status word (e.g. 6700 for data the applet does not
+        # accept) is the card's answer and the command is not sent again
+        try:
+            return transmit(
+                conn, encode_apdu(header, data, le, True), throw_exception
+            )
+        except CardConnectionException:
+            print("[.] Extended APDU rejected by reader, using command chaining")
+            conn.extended = False
 
     # command chaining
-    if apdu[0] & 0x10 == 0x10 and apdu[4] > 255:
-        header = apdu[:4]
-        chunks = [apdu[5:][i : i + 255] for i in range(0, apdu[4], 255)]
-
-        for chunk in chunks[:-1]:
-            transmit(conn, header + [len(chunk)] + chunk, throw_exception)
-        return transmit(
-            conn,
-            [0x00] + header[1:] + [len(chunks[-1])] + chunks[-1],
-            throw_exception,
-        )
-
-    return transmit(conn, apdu, throw_exception)
+    chunks = [
+        data[i : i + SHORT_MAX_LC] for i in range(0, len(data), SHORT_MAX_LC)
+    ] or [[]]
+    for chunk in chunks[:-1]:
+        if (
+            transmit(
+                conn,
+                encode_apdu([header[0] | CLA_CHAINING] + header[1:], chunk),
+                throw_exception,
+            )
+            is None
+        ):
+            return None  # type: ignore
+    return transmit(
+        conn,
+        encode_apdu(
+            header, chunks[-1], None if le is None else min(le, SHORT_MAX_LE)
+        ),
+        throw_exception,
+    )
 
 
 def transmit(conn, apdu, throw_exception):
-    try:
-        conn.connect(CardConnection.T0_protocol)
-    except:
-        conn.connect(CardConnection.T1_protocol)
-
     data, sw1, sw2 = conn.transmit(apdu)
 
     if [sw1, sw2] == [0x90, 0x00]:
@@ -123,9 +305,11 @@ def transmit(conn, apdu, throw_exception):
         return data + send(conn, apdu[0:4] + [sw2])
 
     if throw_exception:
-        raise RuntimeError(
+        raise APDUError(
             "[!] Error: %02x %02x, sending APDU: %s"
-            % (sw1, sw2, toHexString(apdu))
+            % (sw1, sw2, toHexString(apdu)),
+            sw1,
+            sw2,
         )
 
     print(
@@ -0,0 +1,133 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+from dataclasses import asdict, dataclass, replace
+
+# tags of the applet specific install parameters
+TAG_RAM_BUF_SIZE = 0x01
+TAG_AUTH_CERT_CAPACITY = 0x02
+TAG_SIGN_CERT_CAPACITY = 0x03
+TAG_EXTENDED_APDU = 0x04
+TAG_AUTH_PIN_RETRIES_LIMIT = 0x05
+TAG_SIGN_PIN_RETRIES_LIMIT = 0x06
+TAG_ADMIN_PIN_RETRIES_LIMIT = 0x07
+TAG_PIN_MAX_SIZE = 0x08
+TAG_KEY_SLOT_COUNT = 0x09
+
+# default cert with es256 is 1033 bytes
+ES256_CERTIFICATE_LENGTH = 1033
+
+
+@dataclass(frozen=True)
+class CardProfile:
+    """Memory sizes and limits the applet is installed with,
+    the defaults are the ones the applet uses without install parameters."""
+
+    ram_buf_size: int = 0x600
+    auth_cert_capacity: int = 0x600
+    sign_cert_capacity: int = 0x600
+    extended_apdu: bool = True
+    auth_pin_retries_limit: int = 3
+    sign_pin_retries_limit: int = 3
+    admin_pin_retries_limit: int = 1
+    pin_max_size: int = 12
+    key_slot_count: int = 4
+
+
+PROFILES = {
+    # card with little RAM and no extended APDU support, certificates are
+    # longer than the transient buffer, so they have to be written with
+    # UPDATE BINARY in parts (util.store_certificate)
+    "small": CardProfile(
+        ram_buf_size=0x200,
+        auth_cert_capacity=0x480,
+        sign_cert_capacity=0x480,
+        extended_apdu=False,
+        key_slot_count=2,
+    ),
+    "default": CardProfile(),
+    "large": CardProfile(
+        ram_buf_size=0x800,
+        auth_cert_capacity=0x800,
+        sign_cert_capacity=0x800,
+        key_slot_count=8,
+    ),
+}
+
+# (tag, length, minimum, maximum) of every CardProfile field
+PARAMETERS = {
+    "ram_buf_size": (TAG_RAM_BUF_SIZE, 2, 0x100, 0x7FFF),
+    "auth_cert_capacity": (TAG_AUTH_CERT_CAPACITY, 2, 0x100, 0x7FFF),
+    "sign_cert_capacity": (TAG_SIGN_CERT_CAPACITY, 2, 0x100, 0x7FFF),
+    "extended_apdu": (TAG_EXTENDED_APDU, 1, 0, 1),
+    "auth_pin_retries_limit": (TAG_AUTH_PIN_RETRIES_LIMIT, 1, 1, 15),
+    "sign_pin_retries_limit": (TAG_SIGN_PIN_RETRIES_LIMIT, 1, 1, 15),
+    "admin_pin_retries_limit": (TAG_ADMIN_PIN_RETRIES_LIMIT, 1, 1, 15),
+    "pin_max_size": (TAG_PIN_MAX_SIZE, 1, 4, 127),
+    "key_slot_count": (TAG_KEY_SLOT_COUNT, 1, 2, 16),
+}
+
+
+def encode_install_parameters(profile: CardProfile) -> bytes:
+    """TLVs of the values that differ from the applet defaults."""
+    defaults = asdict(CardProfile())
+    parameters = b""
+    for name, value in asdict(profile).items():
+        tag, length, minimum, maximum = PARAMETERS[name]
+        if not minimum <= int(value) <= maximum:
+            raise ValueError(
+                f"{name} must be in range [{minimum}, {maximum}], got {value}"
+            )
+        if value != defaults[name]:
+            parameters += bytes([tag, length]) + int(value).to_bytes(
+                length, "big"
+            )
+    return parameters
+
+
+def get_profile(name: str, **overrides) -> CardProfile:
+    """Profile from PROFILES with the values that are not None replaced."""
+    return replace(
+        PROFILES[name],
+        **{key: value for key, value in overrides.items() if value is not None},
+    )
+
+
+def check_profile(profile: CardProfile) -> list[str]:
+    """Warnings about a profile that will install but limit the applet."""
+    warnings = []
+    for name in ["auth_cert_capacity", "sign_cert_capacity"]:
+        if getattr(profile, name) < ES256_CERTIFICATE_LENGTH:
+            warnings.append(
+                f"{name} is smaller than an ES256 certificate"
+                f" ({ES256_CERTIFICATE_LENGTH} bytes)"
+            )
+    if profile.ram_buf_size < max(
+        profile.auth_cert_capacity, profile.sign_cert_capacity
+    ):
+        warnings.append(
+            "ram_buf_size is smaller than certificate capacity, longer"
+            " certificates can only be written with UPDATE BINARY"
+        )
+    return warnings
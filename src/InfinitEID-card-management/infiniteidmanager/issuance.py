@@ -0,0 +1,107 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import base64
+import csv
+from concurrent.futures import Future, ProcessPoolExecutor
+from pathlib import Path
+
+from .util import load_root_ca, load_root_ca_keys, sign_cert
+
+# parsed root CA of the worker process
+_root_ca = None
+
+
+def _init_worker(root_certificate: bytes, root_key: bytes):
+    global _root_ca
+    _root_ca = load_root_ca_keys(root_certificate, root_key)
+
+
+def _issue(nextcloud_id: str, der_public_key: bytes) -> bytes:
+    return sign_cert(nextcloud_id, der_public_key, *_root_ca)  # type: ignore
+
+
+class CertificateIssuer:
+    """Signs card certificates in a process pool.
+
+    Every worker process parses the root CA once, when it starts, instead
+    of once per certificate."""
+
+    def __init__(
+        self,
+        max_workers: int | None = None,
+        root_ca: tuple[bytes, bytes] | None = None,
+    ):
+        self.executor = ProcessPoolExecutor(
+            max_workers=max_workers,
+            initializer=_init_worker,
+            initargs=root_ca or load_root_ca(),
+        )
+
+    def submit(self, nextcloud_id: str, der_public_key: bytes) -> Future:
+        """Future of the DER certificate of the public key."""
+        return self.executor.submit(_issue, nextcloud_id, der_public_key)
+
+    def issue(self, requests: list[tuple[str, bytes]]) -> list[bytes]:
+        """DER certificates for (Nextcloud ID, DER public key) pairs,
+        in the same order."""
+        return list(
+            self.executor.map(
+                _issue,
+                [nextcloud_id for nextcloud_id, _ in requests],
+                [der_public_key for _, der_public_key in requests],
+                chunksize=16,
+            )
+        )
+
+    def shutdown(self):
+        self.executor.shutdown()
+
+    def __enter__(self):
+        return self
+
+    def __exit__(self, *args):
+        self.shutdown()
+
+
+def read_requests(path: Path) -> list[tuple[str, bytes]]:
+    """Read CSV with nextcloud_id and public_key (base64 DER) columns."""
+    with open(path, encoding="utf8", newline="") as file:
+        return [
+            (row["nextcloud_id"], base64.b64decode(row["public_key"]))
+            for row in csv.DictReader(file)
+        ]
+
+
+def write_certificates(
+    path: Path, requests: list[tuple[str, bytes]], certificates: list[bytes]
+):
+    """Write CSV with nextcloud_id and certificate (base64 DER) columns."""
+    with open(path, "w", encoding="utf8", newline="") as file:
+        writer = csv.writer(file)
+        writer.writerow(["nextcloud_id", "certificate"])
+        for (nextcloud_id, _), certificate in zip(requests, certificates):
+            writer.writerow(
+                [nextcloud_id, base64.b64encode(certificate).decode("ascii")]
+            )
@@ -0,0 +1,326 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import atexit
+import json
+import os
+import threading
+import time
+from bisect import bisect_left
+from pathlib import Path
+
+from smartcard.CardConnectionObserver import CardConnectionObserver
+
+from . import CONFIG
+
+# upper bounds of latency histogram buckets in seconds, the last one is +Inf
+LATENCY_BUCKETS = (0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0)
+INS_GET_RESPONSE = 0xC0
+
+
+class CommandMetrics:
+    """Aggregated metrics of one INS on one card."""
+
+    def __init__(self):
+        self.count = 0
+        self.latency_sum = 0.0
+        self.latency_buckets = [0] * (len(LATENCY_BUCKETS) + 1)
+        self.bytes_out = 0
+        self.bytes_in = 0
+        self.status_words: dict[int, int] = {}
+        # number of GET RESPONSE commands needed to fetch the whole response
+        self.chain_lengths: dict[int, int] = {}
+
+
+class ConnectionState:
+    def __init__(self, atr: str):
+        self.atr = atr
+        self.ins = 0
+        self.start_time = 0.0
+        # INS of the command whose response is being fetched by GET RESPONSE
+        self.chain_ins: int | None = None
+        self.chain_length = 0
+
+
+class MetricsCardConnectionObserver(CardConnectionObserver):
+    """Records per-INS latency histograms, transferred bytes, status words
+    and GET RESPONSE chain lengths of every connection it observes.
+
+    Only counters are updated per APDU, formatting happens on export. The
+    on-card operation counters are exported as last read by
+    util.get_card_counters."""
+
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.connections: dict[int, ConnectionState] = {}
+        # (ATR, INS) -> CommandMetrics
+        self.metrics: dict[tuple[str, int], CommandMetrics] = {}
+        # ATR -> counters returned by util.get_card_counters
+        self.card_counters: dict[str, dict] = {}
+
+    def update(self, cardconnection, cardconnectionevent):
+        now = time.perf_counter()
+
+        if "command" == cardconnectionevent.type:
+            state = self.get_state(cardconnection)
+            apdu = cardconnectionevent.args[0]
+            state.ins = apdu[1]
+            state.start_time = now
+            with self.lock:
+                self.get_metrics(state.atr, state.ins).bytes_out += len(apdu)
+
+        elif "response" == cardconnectionevent.type:
+            state = self.get_state(cardconnection)
+            data, sw1, sw2 = cardconnectionevent.args[-3:]
+            with self.lock:
+                self.record_response(state, now, data, sw1, sw2)
+
+        elif "connect" == cardconnectionevent.type:
+            # the card may have been replaced
+            with self.lock:
+                self.connections.pop(id(cardconnection), None)
+
+    def get_state(self, cardconnection) -> ConnectionState:
+        with self.lock:
+            state = self.connections.get(id(cardconnection))
+        if state is None:
+            # the ATR is read without holding the lock, it may talk to the
+            # reader
+            atr = bytes(cardconnection.getATR()).hex().upper()
+            with self.lock:
+                state = self.connections.setdefault(
+                    id(cardconnection), ConnectionState(atr)
+                )
+        return state
+
+    def get_metrics(self, atr: str, ins: int) -> CommandMetrics:
+        metrics = self.metrics.get((atr, ins))
+        if metrics is None:
+            metrics = self.metrics[(atr, ins)] = CommandMetrics()
+        return metrics
+
+    def record_response(self, state, now, data, sw1, sw2):
+        metrics = self.get_metrics(state.atr, state.ins)
+        latency = now - state.start_time
+        metrics.count += 1
+        metrics.latency_sum += latency
+        metrics.latency_buckets[bisect_left(LATENCY_BUCKETS, latency)] += 1
+        metrics.bytes_in += len(data) + 2
+        sw = (sw1 << 8) | sw2
+        metrics.status_words[sw] = metrics.status_words.get(sw, 0) + 1
+
+        if state.ins == INS_GET_RESPONSE and state.chain_ins is not None:
+            state.chain_length += 1
+        else:
+            state.chain_ins = state.ins
+            state.chain_length = 0
+
+        if sw1 != 0x61:
+            chain_metrics = self.get_metrics(state.atr, state.chain_ins)
+            chain_metrics.chain_lengths[state.chain_length] = (
+                chain_metrics.chain_lengths.get(state.chain_length, 0) + 1
+            )
+            state.chain_ins = None
+
+    def record_card_counters(self, atr: str, counters: dict):
+        with self.lock:
+            self.card_counters[atr] = counters
+
+    def to_dict(self) -> dict:
+        with self.lock:
+            return {
+                "timestamp": time.time(),
+                "latency_buckets": list(LATENCY_BUCKETS),
+                "card_counters": [
+                    {"atr": atr, **counters}
+                    for atr, counters in self.card_counters.items()
+                ],
+                "commands": [
+                    {
+                        "atr": atr,
+                        "ins": f"{ins:02X}",
+                        "count": metrics.count,
+                        "latency_sum": metrics.latency_sum,
+                        "latency_buckets": list(metrics.latency_buckets),
+                        "bytes_out": metrics.bytes_out,
+                        "bytes_in": metrics.bytes_in,
+                        "status_words": {
+                            f"{sw:04X}": count
+                            for sw, count in metrics.status_words.items()
+                        },
+                        "chain_lengths": {
+                            str(length): count
+                            for length, count in metrics.chain_lengths.items()
+                        },
+                    }
+                    for (atr, ins), metrics in self.metrics.items()
+                ],
+            }
+
+    def to_prometheus(self) -> str:
+        """Prometheus text exposition format."""
+        lines = [
+            "# TYPE infiniteid_apdu_latency_seconds histogram",
+            "# TYPE infiniteid_apdu_bytes_out_total counter",
+            "# TYPE infiniteid_apdu_bytes_in_total counter",
+            "# TYPE infiniteid_apdu_status_words_total counter",
+            "# TYPE infiniteid_apdu_get_response_chains_total counter",
+        ]
+        exported = self.to_dict()
+        for command in exported["commands"]:
+            labels = f'atr="{command["atr"]}",ins="{command["ins"]}"'
+            cumulative = 0
+            for bound, count in zip(
+                LATENCY_BUCKETS + ("+Inf",), command["latency_buckets"]
+            ):
+                cumulative += count
+                lines.append(
+                    "infiniteid_apdu_latency_seconds_bucket"
+                    f'{{{labels},le="{bound}"}} {cumulative}'
+                )
+            lines.append(
+                f"infiniteid_apdu_latency_seconds_sum{{{labels}}} "
+                f"{command['latency_sum']}"
+            )
+            lines.append(
+                f"infiniteid_apdu_latency_seconds_count{{{labels}}} "
+                f"{command['count']}"
+            )
+            lines.append(
+                f"infiniteid_apdu_bytes_out_total{{{labels}}} "
+                f"{command['bytes_out']}"
+            )
+            lines.append(
+                f"infiniteid_apdu_bytes_in_total{{{labels}}} "
+                f"{command['bytes_in']}"
+            )
+            for sw, count in command["status_words"].items():
+                lines.append(
+                    "infiniteid_apdu_status_words_total"
+                    f'{{{labels},sw="{sw}"}} {count}'
+                )
+            for length, count in command["chain_lengths"].items():
+                lines.append(
+                    "infiniteid_apdu_get_response_chains_total"
+                    f'{{{labels},length="{length}"}} {count}'
+                )
+        lines += card_counters_to_prometheus(exported["card_counters"])
+        return "\n".join(lines) + "\n"
+
+    def export(self, path: Path, export_format: str):
+        content = (
+            json.dumps(self.to_dict(), indent=2)
+            if export_format == "json"
+            else self.to_prometheus()
+        )
+        # write the whole file at once, so a scraper never reads a partial one
+        temporary_path = path.with_name(path.name + ".tmp")
+        temporary_path.write_text(content)
+        os.replace(temporary_path, path)
+
+
+def card_counters_to_prometheus(card_counters: list[dict]) -> list[str]:
+    """Lines of the on-card operation counters, session_apdus is a gauge
+    as it restarts with every card reset."""
+    if not card_counters:
+        return []
+
+    names = [
+        "pin_failures",
+        "certificate_reads",
+        "get_response_chains",
+        "transaction_aborts",
+    ]
+    lines = ["# TYPE infiniteid_card_signatures_total counter"]
+    lines += [f"# TYPE infiniteid_card_{name}_total counter" for name in names]
+    lines.append("# TYPE infiniteid_card_session_apdus gauge")
+    for counters in card_counters:
+        labels = f'atr="{counters["atr"]}"'
+        for key, count in counters["signatures"].items():
+            lines.append(
+                f'infiniteid_card_signatures_total{{{labels},key="{key}"}} '
+                f"{count}"
+            )
+        for name in names:
+            lines.append(
+                f"infiniteid_card_{name}_total{{{labels}}} {counters[name]}"
+            )
+        lines.append(
+            f"infiniteid_card_session_apdus{{{labels}}} "
+            f"{counters['session_apdus']}"
+        )
+    return lines
+
+
+class MetricsExporter(threading.Thread):
+    """Writes the observer's metrics to a file every interval_seconds."""
+
+    def __init__(
+        self,
+        observer: MetricsCardConnectionObserver,
+        path: Path,
+        export_format: str,
+        interval_seconds: float,
+    ):
+        super().__init__(daemon=True)
+        self.observer = observer
+        self.path = path
+        self.export_format = export_format
+        self.interval_seconds = interval_seconds
+        self.stopped = threading.Event()
+
+    def run(self):
+        while not self.stopped.wait(self.interval_seconds):
+            self.observer.export(self.path, self.export_format)
+
+    def stop(self):
+        self.stopped.set()
+        self.observer.export(self.path, self.export_format)
+
+
+_observer: MetricsCardConnectionObserver | None = None
+_observer_lock = threading.Lock()
+
+
+def get_metrics_observer() -> MetricsCardConnectionObserver | None:
+    """Observer shared by all connections, None if METRICS_FILE is not set.
+
+    The first call starts the periodic export configured by METRICS_FILE,
+    METRICS_FORMAT ("prometheus" or "json") and METRICS_INTERVAL_SECONDS."""
+    global _observer
+    if not CONFIG.get("METRICS_FILE"):
+        return None
+
+    with _observer_lock:
+        if _observer is None:
+            _observer = MetricsCardConnectionObserver()
+            exporter = MetricsExporter(
+                _observer,
+                Path(CONFIG["METRICS_FILE"]).expanduser(),
+                CONFIG.get("METRICS_FORMAT", "prometheus"),
+                CONFIG.get("METRICS_INTERVAL_SECONDS", 15),
+            )
+            exporter.start()
+            atexit.register(exporter.stop)
+    return _observer
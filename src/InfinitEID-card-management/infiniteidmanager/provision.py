@@ -0,0 +1,216 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import queue
+import threading
+import time
+
+from smartcard.CardRequest import CardRequest
+from smartcard.CardType import AnyCardType
+from smartcard.Exceptions import CardRequestTimeoutException
+from smartcard.System import readers
+
+from . import APDU_LIST
+from .connector import CardSession, add_observers, send
+from .issuance import CertificateIssuer
+from .util import (
+    build_apdu,
+    generate_keypair,
+    set_pins,
+    store_certificate,
+)
+
+# how often a waiting worker checks whether provisioning was stopped
+CARD_POLL_SECONDS = 1
+
+
+class ProvisioningReport:
+    """Thread-safe counters of provisioned cards."""
+
+    def __init__(self):
+        self.lock = threading.Lock()
+        self.start_time = time.perf_counter()
+        self.provisioned: dict[str, int] = {}
+        self.failed: dict[str, int] = {}
+
+    def record(self, reader: str, success: bool):
+        with self.lock:
+            counters = self.provisioned if success else self.failed
+            counters[reader] = counters.get(reader, 0) + 1
+
+    def total_provisioned(self) -> int:
+        with self.lock:
+            return sum(self.provisioned.values())
+
+    def cards_per_minute(self) -> float:
+        elapsed = time.perf_counter() - self.start_time
+        return sum(self.provisioned.values()) / elapsed * 60
+
+    def print(self):
+        with self.lock:
+            print(
+                f"[+] Provisioned {sum(self.provisioned.values())} cards,",
+                f"{sum(self.failed.values())} failed,",
+                f"{self.cards_per_minute():.2f} cards per minute",
+            )
+            for reader in sorted(self.provisioned.keys() | self.failed.keys()):
+                print(
+                    f"    {reader}: {self.provisioned.get(reader, 0)}",
+                    f"provisioned, {self.failed.get(reader, 0)} failed",
+                )
+
+
+def provision_card(
+    conn,
+    nextcloud_id: str,
+    operations: list[str],
+    issuer: CertificateIssuer,
+    admin_pin_set: bool,
+):
+    """Same steps as init.init, but certificates are signed by the issuer
+    while the card generates the next keypair."""
+    send(conn, build_apdu(APDU_LIST["select_main_aid"]))
+    set_pins(conn, admin_pin_set)
+
+    certificates = {}
+    for operation in operations:
+        public_key = generate_keypair(conn, operation)  # type: ignore
+        certificates[operation] = issuer.submit(nextcloud_id, public_key)
+
+    for operation, certificate in certificates.items():
+        store_certificate(
+            conn, operation, list(certificate.result())  # type: ignore
+        )
+
+
+def reader_worker(
+    reader,
+    nextcloud_ids: queue.Queue,
+    operations: list[str],
+    issuer: CertificateIssuer,
+    admin_pin_set: bool,
+    report: ProvisioningReport,
+    stop: threading.Event,
+):
+    """Provision every card inserted into the reader until provisioning
+    is stopped."""
+    newcardonly = False
+    while not stop.is_set():
+        try:
+            cardservice = CardRequest(
+                timeout=CARD_POLL_SECONDS,
+                readers=[reader],
+                cardType=AnyCardType(),
+                newcardonly=newcardonly,
+            ).waitforcard()
+        except CardRequestTimeoutException:
+            continue
+        # the provisioned card stays in the reader until it is replaced
+        newcardonly = True
+
+        try:
+            nextcloud_id = nextcloud_ids.get_nowait()
+        except queue.Empty:
+            # other workers are provisioning the remaining IDs, their ID
+            # comes back if they fail
+            print(f"[.] {reader}: no Nextcloud ID left for this card")
+            continue
+
+        conn = CardSession(cardservice.connection)
+        add_observers(conn, False)
+        try:
+            provision_card(
+                conn,
+                nextcloud_id,
+                operations,
+                issuer,
+                admin_pin_set,
+            )
+            print(f"[+] {reader}: provisioned card of {nextcloud_id}")
+            report.record(str(reader), True)
+        except Exception as exception:  # pylint: disable=broad-except
+            print(f"[!] {reader}: provisioning failed: {exception}")
+            # the ID is given to the next inserted card
+            nextcloud_ids.put(nextcloud_id)
+            report.record(str(reader), False)
+        report.print()
+
+
+def provision(
+    nextcloud_ids: list[str],
+    operations: list[str] | None = None,
+    admin_pin_set: bool = False,
+    issuer: CertificateIssuer | None = None,
+) -> ProvisioningReport:
+    """Provision cards in all connected readers in parallel, one worker per
+    reader, until every Nextcloud ID has its card."""
+    operations = operations or ["auth"]
+    ids = queue.Queue()
+    for nextcloud_id in nextcloud_ids:
+        ids.put(nextcloud_id)
+
+    report = ProvisioningReport()
+    reader_list = readers()
+    if not reader_list:
+        print("[!] No card reader found")
+        return report
+    print(f"[+] Provisioning with {len(reader_list)} readers")
+    stop = threading.Event()
+    own_issuer = issuer is None
+    issuer = issuer or CertificateIssuer()
+
+    workers = [
+        threading.Thread(
+            target=reader_worker,
+            args=(
+                reader,
+                ids,
+                operations,
+                issuer,
+                admin_pin_set,
+                report,
+                stop,
+            ),
+            daemon=True,
+        )
+        for reader in reader_list
+    ]
+    try:
+        for worker in workers:
+            worker.start()
+        while report.total_provisioned() < len(nextcloud_ids):
+            time.sleep(CARD_POLL_SECONDS)
+        stop.set()
+        for worker in workers:
+            worker.join()
+    except KeyboardInterrupt:
+        print("[.] Stopping after the cards being provisioned")
+        stop.set()
+        for worker in workers:
+            worker.join()
+    finally:
+        if own_issuer:
+            issuer.shutdown()
+
+    return report
@@ -0,0 +1,182 @@
+"""
+MIT License
+
+Copyright (c) 2022 Petr Muzikant
+
+Permission is hereby granted, free of charge, to any person obtaining a copy
+of this software and associated documentation files (the "Software"), to deal
+in the Software without restriction, including without limitation the rights
+to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+copies of the Software, and to permit persons to whom the Software is
+furnished to do so, subject to the following conditions:
+
+The above copyright notice and this permission notice shall be included in all
+copies or substantial portions of the Software.
+
+THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+SOFTWARE.
+"""
+
+import atexit
+import socket
+import subprocess
+import time
+from pathlib import Path
+
+from smartcard.CardConnectionEvent import CardConnectionEvent
+from smartcard.CardConnectionObserver import CardConnectionObserver
+
+from . import CONFIG
+
+# vpcd control commands, see InfinitEID.simulator.VirtualCard
+POWER_OFF = 0x00
+POWER_ON = 0x01
+RESET = 0x02
+GET_ATR = 0x04
+
+SIMULATOR_MAIN_CLASS = "InfinitEID.simulator.VirtualCard"
+SIMULATOR_START_TIMEOUT_SECONDS = 30
+
+simulator_process: subprocess.Popen | None = None
+
+
+class SimulatorConnection:
+    """Connection to the applet running in jCardSim
+    (InfinitEID.simulator.VirtualCard --listen).
+
+    Provides the same interface as connector.CardSession, so it can be
+    passed wherever a connection is expected. Messages are framed by their
+    length (two bytes, big-endian) as in vsmartcard's vpcd protocol."""
+
+    def __init__(self, host: str, port: int):
+        self.host = host
+        self.port = port
+        self.socket: socket.socket | None = None
+        self.atr: list | None = None
+        self.observers: list[CardConnectionObserver] = []
+        # jCardSim handles extended APDUs unless disabled by install params
+        self.extended: bool = CONFIG.get("EXTENDED_APDU", False)
+
+    def connect(self):
+        self.socket = socket.create_connection((self.host, self.port))
+        self.socket.setsockopt(socket.IPPROTO_TCP, socket.TCP_NODELAY, 1)
+        self.atr = list(self.exchange([GET_ATR]))
+        self.notify("connect", [])
+
+    def disconnect(self):
+        if self.socket is not None:
+            self.notify("disconnect", [])
+            self.socket.close()
+            self.socket = None
+
+    def reset(self):
+        """Reset the card, the applet has to be selected again."""
+        if self.socket is None:
+            self.connect()
+        self.send_message([RESET])
+
+    def transmit(self, apdu: list) -> tuple[list, int, int]:
+        if self.socket is None:
+            self.connect()
+
+        self.notify("command", [apdu, None])
+        response = list(self.exchange(apdu))
+        data, sw1, sw2 = response[:-2], response[-2], response[-1]
+        self.notify("response", [data, sw1, sw2])
+        return data, sw1, sw2
+
+    def exchange(self, message: list) -> bytes:
+        self.send_message(message)
+        length = int.from_bytes(self.receive(2), "big")
+        return self.receive(length)
+
+    def send_message(self, message: list):
+        assert self.socket is not None
+        self.socket.sendall(len(message).to_bytes(2, "big") + bytes(message))
+
+    def receive(self, length: int) -> bytes:
+        assert self.socket is not None
+        received = b""
+        while len(received) < length:
+            chunk = self.socket.recv(length - len(received))
+            if not chunk:
+                raise ConnectionError("Simulator closed the connection")
+            received += chunk
+        return received
+
+    def notify(self, event_type: str, args: list):
+        event = CardConnectionEvent(event_type, args)
+        for observer in self.observers:
+            observer.update(self, event)
+
+    def addObserver(self, observer: CardConnectionObserver):
+        self.observers.append(observer)
+
+    def getATR(self) -> list:
+        if self.socket is None:
+            self.connect()
+        return self.atr  # type: ignore
+
+    def getReader(self) -> str:
+        return f"InfinitEID simulator {self.host}:{self.port}"
+
+
+def start_simulator(
+    port: int, install_params: str | None = None
+) -> subprocess.Popen:
+    """Run the simulator from SIMULATOR_JAR, installed with install_params
+    (hex, SIMULATOR_INSTALL_PARAMS by default), and wait until it accepts
+    connections, it is stopped when this process exits."""
+    jar = Path(CONFIG["SIMULATOR_JAR"]).expanduser()
+    if not jar.is_file():
+        raise FileNotFoundError(
+            f"{jar} not found, build it by `mvn package`"
+            " in InfinitEID-applet/simulator"
+        )
+
+    print(f"[.] Starting simulator from {jar}")
+    command = ["java", "-cp", str(jar), SIMULATOR_MAIN_CLASS]
+    command += ["--listen", str(port)]
+    if install_params is None:
+        install_params = CONFIG.get("SIMULATOR_INSTALL_PARAMS")
+    if install_params:
+        command += ["--params", install_params]
+    process = subprocess.Popen(
+        command, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL
+    )
+    atexit.register(process.terminate)
+
+    deadline = time.monotonic() + SIMULATOR_START_TIMEOUT_SECONDS
+    while time.monotonic() < deadline:
+        if process.poll() is not None:
+            raise RuntimeError(f"Simulator exited with {process.returncode}")
+        try:
+            socket.create_connection(("localhost", port)).close()
+            return process
+        except ConnectionRefusedError:
+            time.sleep(0.1)
+    raise TimeoutError("Simulator did not start")
+
+
+def connect_simulator() -> SimulatorConnection:
+    """Connect to the simulator at SIMULATOR_HOST:SIMULATOR_PORT, starting
+    it first if it does not run and SIMULATOR_JAR is set."""
+    global simulator_process
+
+    conn = SimulatorConnection(
+        CONFIG["SIMULATOR_HOST"], CONFIG["SIMULATOR_PORT"]
+    )
+    try:
+        conn.connect()
+    except ConnectionRefusedError:
+        if not CONFIG.get("SIMULATOR_JAR") or simulator_process is not None:
+            raise
+        simulator_process = start_simulator(conn.port)
+        conn.connect()
+    print("[+] Connected to", conn.getReader())
+    return conn
@@ -24,17 +24,30 @@ SOFTWARE.
 
 import datetime
 import os
+from hashlib import sha256
 from pathlib import Path
-from typing import Literal
+from typing import BinaryIO, Literal
 
 from Cryptodome.PublicKey import ECC
 from cryptography import x509
 from cryptography.hazmat.backends import default_backend
 from cryptography.hazmat.primitives import hashes, serialization
+from cryptography.hazmat.primitives.asymmetric.utils import (
+    encode_dss_signature,
+)
 from cryptography.x509.oid import NameOID
+from smartcard.util import toHexString
 
 from . import APDU_LIST, CONFIG
-from .connector import send
+from .connector import (
+    CLA_CHAINING,
+    SHORT_MAX_LC,
+    SHORT_MAX_LE,
+    encode_apdu,
+    get_ATR,
+    send,
+)
+from .metrics import get_metrics_observer
 
 
 def clear_screen():
@@ -52,46 +65,111 @@ def build_apdu(apdu, data=None, le=None):
         )
     )
 
-    if data is not None:
-        apdu = apdu + [len(data)] + data
-    if le is not None:
-        apdu = apdu + [le]
-
-    return apdu
+    if data is None and le is None:
+        return apdu
 
+    extended = (data is not None and len(data) > SHORT_MAX_LC) or (
+        le is not None and le > SHORT_MAX_LE
+    )
+    return encode_apdu(apdu, data, le, extended)
+
+
+# maximum Le of READ BINARY in an extended APDU the applet accepts
+EXTENDED_MAX_LE = 0x7FFF
+# data of one extended command of a document signed by sign_document
+STREAMING_EXTENDED_BLOCK_SIZE = 0x1000
+# data of the set_*_signature_format commands
+SIGNATURE_FORMATS = {"der": 0x00, "raw": 0x01}
+# r || s, both left-padded to 32 bytes
+RAW_SIGNATURE_LENGTH = 64
+# room the card reserves for a DER signature of a batch
+MAX_DER_SIGNATURE_LENGTH = 72
+HASH_LENGTH = 32
+# TLV tags of the card status (GET DATA 00FF)
+STATUS_TAG_VERSION = 0xC0
+STATUS_TAG_PUBLIC_KEYS = {"auth": 0xC1, "sign": 0xC2}
+STATUS_TAG_PIN_RETRIES = 0xC3
+STATUS_TAG_CERTIFICATE_LENGTHS = 0xC4
+STATUS_TAG_RAM_BUF_SIZE = 0xC5
+# TLV tags of the operation counters (GET DATA 00FE), the signatures are
+# counted per key slot
+COUNTERS_TAG_SIGNATURES = 0xD0
+COUNTERS_TAGS = {
+    0xD1: "pin_failures",
+    0xD2: "certificate_reads",
+    0xD3: "get_response_chains",
+    0xD4: "transaction_aborts",
+    0xD5: "session_apdus",
+}
+COUNTER_LENGTH = 4
+
+
+def read_der_length(header: list) -> int | None:
+    """Total length of the DER element the header starts,
+    None if the header is not complete yet."""
+    if len(header) < 2:
+        return None
+
+    if header[1] < 0x80:
+        return header[1] + 2
+
+    length_size = header[1] & 0x7F
+    if len(header) < 2 + length_size:
+        return None
+    return int.from_bytes(bytes(header[2 : 2 + length_size]), "big") + (
+        2 + length_size
+    )
 
-def read_data_length_from_asn1(conn):
-    result = list(send(conn, build_apdu(APDU_LIST["read_binary"], le=4)))
 
-    assert result[0] == 0x30
-    assert result[1] == 0x82
-    return (result[2] << 8) + result[3] + 4
+def read_certificate(conn, extended: bool | None = None) -> list:
+    """Read the DER encoded certificate from the selected file.
 
+    The first READ BINARY already asks for the maximum block and the length
+    is taken from the DER header it returns, so the whole file is read in
+    a single pass. A block size corrected by 6Cxx is kept for the rest of
+    the file and 6282 (end of file reached) ends the read."""
+    if extended is None:
+        extended = CONFIG.get("EXTENDED_APDU", False)
+    blocklength = EXTENDED_MAX_LE if extended else SHORT_MAX_LE
 
-def process_read_binary(conn, length, blocklength):
-    lencounter = length
+    command = build_apdu(APDU_LIST["read_binary"])
     result = []
-    command = build_apdu(APDU_LIST["read_binary"], le=0)
-
-    offset = 0
-
-    while lencounter != 0:
-        blocklength = min(blocklength, lencounter)
-        offset_bytes = list((offset).to_bytes(2, byteorder="big"))
-        command[2] = offset_bytes[0]
-        command[3] = offset_bytes[1]
-        command[4] = blocklength
-
-        response = list(send(conn, command))
-
-        result.extend(response)
+    length = None
 
-        offset = offset + blocklength
-        lencounter = lencounter - blocklength
+    while length is None or len(result) < length:
+        le = blocklength
+        if length is not None:
+            le = min(blocklength, length - len(result))
 
-    assert len(result) == length
+        apdu = encode_apdu(
+            command[:2] + list(len(result).to_bytes(2, "big")),
+            le=le,
+            extended=extended,
+        )
 
-    return result
+        data, sw1, sw2 = conn.transmit(apdu)
+
+        if sw1 == 0x6C and (sw2 or SHORT_MAX_LE) != le:
+            blocklength = sw2 or SHORT_MAX_LE
+            continue
+        if sw1 == 0x61:
+            data = data + send(conn, [0x00, 0xC0, 0x00, 0x00, sw2])
+        elif [sw1, sw2] not in ([0x90, 0x00], [0x62, 0x82]):
+            raise RuntimeError(
+                "[!] Error: %02x %02x, sending APDU: %s"
+                % (sw1, sw2, toHexString(apdu))
+            )
+
+        result.extend(data)
+        if length is None:
+            length = read_der_length(result)
+        if [sw1, sw2] == [0x62, 0x82] or not data:
+            break
+
+    assert length is not None and len(result) >= length, (
+        "Certificate on card is shorter than its DER header says"
+    )
+    return result[:length]
 
 
 def create_cert(
@@ -100,14 +178,29 @@ def create_cert(
     root_certificate: bytes,
     root_key_input: bytes,
 ):
-    validity = datetime.timedelta(CONFIG["CARD_CERT_VALIDITY_DAYS"], 0, 0)
+    root_cert, root_key = load_root_ca_keys(root_certificate, root_key_input)
+    return sign_cert(nextcloud_id, der_public_key_to_sign, root_cert, root_key)
+
 
+def load_root_ca_keys(root_certificate: bytes, root_key_input: bytes):
+    """Parse PEM root certificate and root private key."""
     root_key = serialization.load_pem_private_key(
         root_key_input, password=None, backend=default_backend()
     )
     root_cert = x509.load_pem_x509_certificate(
         root_certificate, default_backend()
     )
+    return root_cert, root_key
+
+
+def sign_cert(
+    nextcloud_id: str,
+    der_public_key_to_sign: bytes,
+    root_cert,
+    root_key,
+) -> bytes:
+    """Create DER certificate of the public key signed by parsed root CA."""
+    validity = datetime.timedelta(CONFIG["CARD_CERT_VALIDITY_DAYS"], 0, 0)
 
     # Now we want to generate a cert from that root
     public_key = serialization.load_der_public_key(
@@ -203,42 +296,279 @@ def encode_pin(pin):
     return [ord(str(num)) for num in pin]
 
 
+def build_input_template(pin, hash_to_be_signed) -> list:
+    """Data of the commands that verify the PIN and sign in one step:
+    81 L PIN 90 L HASH."""
+    pin = encode_pin(pin)
+    return (
+        [0x81, len(pin)]
+        + pin
+        + [0x90, len(hash_to_be_signed)]
+        + list(hash_to_be_signed)
+    )
+
+
+def authenticate_with_pin(conn, pin, hash_to_be_signed) -> list:
+    """Verify auth PIN and sign the hash with one INTERNAL AUTHENTICATE."""
+    return send(
+        conn,
+        build_apdu(
+            APDU_LIST["internal_authenticate_with_pin"],
+            data=build_input_template(pin, hash_to_be_signed),
+        ),
+    )
+
+
+def sign_with_pin(conn, pin, hash_to_be_signed) -> list:
+    """Verify sign PIN and sign the hash with one PERFORM SIGNATURE."""
+    return send(
+        conn,
+        build_apdu(
+            APDU_LIST["perform_signature_with_pin"],
+            data=build_input_template(pin, hash_to_be_signed),
+        ),
+    )
+
+
+def max_batch_size(
+    ram_buf_size: int, signature_format: Literal["der", "raw"] = "der"
+) -> int:
+    """Number of hashes that fit into one batch of a card installed with
+    the given ram_buf_size, e.g. 14 (16 raw) with the default 0x600."""
+    signature_length = (
+        RAW_SIGNATURE_LENGTH
+        if signature_format == "raw"
+        else MAX_DER_SIGNATURE_LENGTH
+    )
+    return ram_buf_size // (HASH_LENGTH + signature_length)
+
+
+def perform_batch_signature(
+    conn,
+    hashes: list[bytes],
+    signature_format: Literal["der", "raw"] = "der",
+) -> list[bytes]:
+    """Sign several precomputed SHA-256 hashes with one PERFORM SIGNATURE.
+
+    Sign PIN has to be verified before, it is reset after the whole batch.
+    Card holds the hashes and signatures in its transient buffer, whose size
+    is set by the ram_buf_size install parameter, see max_batch_size.
+    signature_format has to match the format set on the card.
+    """
+    data = [byte for hash_to_be_signed in hashes for byte in hash_to_be_signed]
+    apdu = build_apdu(APDU_LIST["perform_batch_signature"], data=data)
+    response = send(conn, apdu)
+    if signature_format == "raw":
+        return [
+            bytes(response[offset : offset + RAW_SIGNATURE_LENGTH])
+            for offset in range(0, len(response), RAW_SIGNATURE_LENGTH)
+        ]
+    return split_der_signatures(response)
+
+
+def sign_document(conn, document: BinaryIO) -> list:
+    """Hash and sign the document on the card with one PERFORM SIGNATURE
+    streamed by command chaining.
+
+    The document is read and sent block by block, one short command each or
+    one extended command each if the connection uses extended APDUs, so
+    neither the host nor the card holds more than one block. Sign PIN has
+    to be verified before, the signature is over SHA-256 of the whole
+    document (ECDSA with SHA-256, not prehashed)."""
+    block_size = (
+        STREAMING_EXTENDED_BLOCK_SIZE
+        if getattr(conn, "extended", False)
+        else SHORT_MAX_LC
+    )
+
+    block = document.read(block_size)
+    while True:
+        next_block = document.read(block_size)
+        apdu = build_apdu(
+            APDU_LIST["perform_streaming_signature"],
+            data=list(block),
+            le=None if next_block else SHORT_MAX_LE,
+        )
+        if not next_block:
+            return send(conn, apdu)
+        apdu[0] |= CLA_CHAINING
+        send(conn, apdu)
+        block = next_block
+
+
+def split_der_signatures(data) -> list[bytes]:
+    # every signature is a DER SEQUENCE shorter than 128 bytes,
+    # so its length is always in the second byte
+    signatures = []
+    offset = 0
+    while offset < len(data):
+        length = data[offset + 1] + 2
+        signatures.append(bytes(data[offset : offset + length]))
+        offset += length
+
+    return signatures
+
+
+def set_signature_format(
+    conn,
+    operation: Literal["auth", "sign"],
+    signature_format: Literal["der", "raw"],
+):
+    """Set the format of the signatures of the operation's key: DER
+    (default, expected by Web-eID) or raw r || s (JWS, WebAuthn), which
+    saves the host the DER parsing. The key stays untouched."""
+    verify_pin(conn, CONFIG["ADMIN_PIN"], "admin")
+
+    print(f"[>] Set {operation} signature format to {signature_format}")
+    send(
+        conn,
+        build_apdu(
+            APDU_LIST[f"set_{operation}_signature_format"],
+            data=[SIGNATURE_FORMATS[signature_format]],
+        ),
+    )
+
+
+def raw_to_der(signature) -> bytes:
+    """DER encoding of a raw r || s signature."""
+    half = len(signature) // 2
+    return encode_dss_signature(
+        int.from_bytes(bytes(signature[:half]), "big"),
+        int.from_bytes(bytes(signature[half:]), "big"),
+    )
+
+
 def handle_pk_and_cert_init(
     conn, nextcloud_id, operation: Literal["auth"]
 ):
-    # generate keypairs
+    public_key = generate_keypair(conn, operation)
+    root_certificate, root_key = load_root_ca()
+
+    # create new certificate and store it on card
+    print("[.] Creating user certificate")
+    created_cert = list(
+        create_cert(
+            nextcloud_id,
+            public_key,  # type: ignore
+            root_certificate,
+            root_key,
+        )
+    )
+    store_certificate(conn, operation, created_cert)
+
+
+def generate_keypair(conn, operation: Literal["auth", "sign"]) -> bytes:
+    """Generate the keypair on card and return its DER encoded public key."""
     verify_pin(conn, CONFIG["ADMIN_PIN"], "admin")
 
     print(f"[>] Generate {operation} keypair")
     send(conn, build_apdu(APDU_LIST[f"generate_{operation}_keypair"]))
 
     # obtain public key from card so we can create certificate of it
+    return get_public_key(conn, operation)
+
+
+def get_public_key(conn, operation: Literal["auth", "sign"]) -> bytes:
+    """Get DER encoded public key of the keypair on card."""
     print(f"[>] Get {operation} public key")
     public_key = send(
         conn, build_apdu(APDU_LIST[f"get_{operation}_public_key"])
     )
     public_key = ECC.import_key(bytes(public_key), curve_name="p256")
-    public_key = public_key.export_key(format="DER")
+    return public_key.export_key(format="DER")
+
+
+def get_card_status(conn) -> dict:
+    """Read the applet version, both public keys (DER, None if not
+    generated), the remaining tries and limits of all PINs, the lengths
+    of the stored certificates (0 = none) and the most data a command can
+    send (ram_buf_size, None for applets without it) with a single GET DATA,
+    instead of one command each."""
+    values = parse_tlvs(send(conn, build_apdu(APDU_LIST["get_card_status"])))
+
+    version = values[STATUS_TAG_VERSION]
+    retries = values[STATUS_TAG_PIN_RETRIES]
+    lengths = values[STATUS_TAG_CERTIFICATE_LENGTHS]
+    ram_buf_size = values.get(STATUS_TAG_RAM_BUF_SIZE)
+    return {
+        "version": f"{version[0]}.{version[1]}",
+        "public_keys": {
+            operation: ECC.import_key(
+                bytes(values[tag]), curve_name="p256"
+            ).export_key(format="DER")
+            if values[tag]
+            else None
+            for operation, tag in STATUS_TAG_PUBLIC_KEYS.items()
+        },
+        # (tries remaining, limit) as returned by get_*_pin_retries
+        "pin_retries": {
+            reference: (retries[2 * i], retries[2 * i + 1])
+            for i, reference in enumerate(["auth", "sign", "admin"])
+        },
+        "certificate_lengths": {
+            operation: (lengths[2 * i] << 8) | lengths[2 * i + 1]
+            for i, operation in enumerate(["auth", "sign"])
+        },
+        "ram_buf_size": (ram_buf_size[0] << 8) | ram_buf_size[1]
+        if ram_buf_size
+        else None,
+    }
+
+
+def parse_tlvs(data: list) -> dict[int, list]:
+    """Values of a sequence of TLVs with one byte tags and lengths."""
+    values = {}
+    offset = 0
+    while offset < len(data):
+        length = data[offset + 1]
+        values[data[offset]] = data[offset + 2 : offset + 2 + length]
+        offset += 2 + length
+    return values
+
+
+def get_card_counters(conn) -> dict:
+    """Read the operation counters of the card: signatures per key reference,
+    PIN failures, certificate reads, GET RESPONSE chains and transaction
+    aborts since the applet was installed and the APDUs processed since the
+    card reset (session_apdus).
+
+    The counters are also recorded by the metrics observer, if enabled."""
+    values = parse_tlvs(send(conn, build_apdu(APDU_LIST["get_card_counters"])))
+
+    signatures = values[COUNTERS_TAG_SIGNATURES]
+    counters: dict = {
+        # key reference = key slot + 1
+        "signatures": {
+            offset // COUNTER_LENGTH + 1: int.from_bytes(
+                bytes(signatures[offset : offset + COUNTER_LENGTH]), "big"
+            )
+            for offset in range(0, len(signatures), COUNTER_LENGTH)
+        }
+    }
+    for tag, name in COUNTERS_TAGS.items():
+        counters[name] = int.from_bytes(bytes(values[tag]), "big")
+
+    metrics_observer = get_metrics_observer()
+    if metrics_observer is not None:
+        metrics_observer.record_card_counters(
+            get_ATR(conn).replace(" ", ""), counters
+        )
+    return counters
 
-    # load root CA and root private key
+
+def load_root_ca() -> tuple[bytes, bytes]:
+    """Load root certificate and root private key (both PEM)."""
     print("[.] Loading root certificate and root private key")
     cert_directory = Path(CONFIG["ROOT_CA_DIRECTORY_FULL_PATH"])
     with open(cert_directory / "rootcertificate.pem", "rb") as f1, open(
         cert_directory / "rootkey.pem", "rb"
     ) as f2:
-        root_certificate = f1.read()
-        root_key = f2.read()
+        return f1.read(), f2.read()
 
-    # create new certificate and store it on card
-    print("[.] Creating user certificate")
-    created_cert = list(
-        create_cert(
-            nextcloud_id,
-            public_key,  # type: ignore
-            root_certificate,
-            root_key,
-        )
-    )
+
+def store_and_check_certificate(
+    conn, operation: Literal["auth", "sign"], created_cert: list
+):
     verify_pin(conn, CONFIG["ADMIN_PIN"], "admin")
 
     print(f"[>] Store {operation} user certificate")
@@ -265,11 +595,131 @@ def handle_pk_and_cert_init(
     # load certificate from card with read_binary command and
     # check if it is the same as created certificate
     send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
-    cert_from_card = process_read_binary(
-        conn, read_data_length_from_asn1(conn), 128
-    )
+    cert_from_card = read_certificate(conn)
     assert created_cert == cert_from_card, (
         "Something went wrong with storing certificate on card"
         "Please store it manually or reload whole applet and"
         "run initialization again."
     )
+
+
+def store_certificate(conn, operation: Literal["auth", "sign"], cert: list):
+    """Store the first certificate of a keypair. A certificate longer than
+    the card's RAM buffer (e.g. the small install profile) cannot be sent
+    by STORE CERTIFICATE, it is written in parts by UPDATE BINARY."""
+    ram_buf_size = get_card_status(conn)["ram_buf_size"]
+    if ram_buf_size is not None and len(cert) > ram_buf_size:
+        update_certificate(conn, operation, cert, [])
+    else:
+        store_and_check_certificate(conn, operation, cert)
+
+
+# header and Lc of an UPDATE BINARY, a run of unchanged bytes shorter than
+# this is cheaper to rewrite than to start a new command
+UPDATE_BINARY_OVERHEAD = 5
+# the number of UPDATE BINARY commands is announced to the card in one byte
+MAX_UPDATE_BINARY_COMMANDS = 255
+
+
+def diff_certificates(old_cert: list, new_cert: list) -> list[tuple[int, list]]:
+    """Ranges (offset, bytes) of new_cert that differ from old_cert,
+    each at most SHORT_MAX_LC bytes long."""
+    ranges: list[tuple[int, list]] = []
+    start = None
+    end = 0
+    for offset, byte in enumerate(new_cert):
+        if offset < len(old_cert) and old_cert[offset] == byte:
+            continue
+        if start is None or offset - end >= UPDATE_BINARY_OVERHEAD:
+            if start is not None:
+                ranges.append((start, new_cert[start:end]))
+            start = offset
+        end = offset + 1
+    if start is not None:
+        ranges.append((start, new_cert[start:end]))
+
+    return [
+        (offset + i, data[i : i + SHORT_MAX_LC])
+        for offset, data in ranges
+        for i in range(0, len(data), SHORT_MAX_LC)
+    ]
+
+
+def update_certificate(
+    conn,
+    operation: Literal["auth", "sign"],
+    new_cert: list,
+    old_cert: list | None,
+):
+    """Replace the certificate on card by writing only the bytes that differ
+    from the stored one with UPDATE BINARY, e.g. for a renewed certificate
+    that only has a new serial number, validity and signature.
+
+    Without a stored certificate (None) the whole one is stored by
+    store_certificate. An empty old_cert writes the whole certificate with
+    UPDATE BINARY."""
+    if old_cert is None:
+        store_certificate(conn, operation, new_cert)
+        return
+
+    ranges = diff_certificates(old_cert, new_cert)
+    if len(ranges) > MAX_UPDATE_BINARY_COMMANDS:
+        ranges = diff_certificates([], new_cert)
+    if not ranges:
+        # the card stores the certificate with the last announced write
+        ranges = [(0, new_cert[:1])]
+    print(
+        f"[.] Updating {sum(len(data) for _, data in ranges)} of",
+        f"{len(new_cert)} bytes in {len(ranges)} UPDATE BINARY commands",
+    )
+
+    # announcing the writes resets the admin PIN and invalidates the stored
+    # certificate until the last of them
+    verify_pin(conn, CONFIG["ADMIN_PIN"], "admin")
+    send(
+        conn,
+        build_apdu(
+            APDU_LIST[f"begin_{operation}_certificate_update"],
+            data=[len(ranges)],
+        ),
+    )
+    send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
+    command = build_apdu(APDU_LIST["update_binary"])
+    for offset, data in ranges:
+        send(
+            conn,
+            encode_apdu(command[:2] + list(offset.to_bytes(2, "big")), data),
+        )
+
+    fingerprint = send(
+        conn,
+        build_apdu(APDU_LIST[f"get_{operation}_certificate_fingerprint"]),
+    )
+    assert bytes(fingerprint) == sha256(bytes(new_cert)).digest(), (
+        "Something went wrong with updating certificate on card"
+        "Please store it manually or reload whole applet and"
+        "run initialization again."
+    )
+
+
+def renew_certificate(
+    conn,
+    nextcloud_id: str,
+    operation: Literal["auth", "sign"],
+    old_cert: list | None,
+) -> list:
+    """Issue a new certificate of the public key on card and store it."""
+    public_key = get_public_key(conn, operation)
+    root_certificate, root_key = load_root_ca()
+
+    print("[.] Creating user certificate")
+    new_cert = list(
+        create_cert(
+            nextcloud_id,
+            public_key,  # type: ignore
+            root_certificate,
+            root_key,
+        )
+    )
+    update_certificate(conn, operation, new_cert, old_cert)
+    return new_cert
@@ -22,6 +22,9 @@ OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
 SOFTWARE.
 """
 
+import asyncio
+import io
+import os
 from hashlib import sha256
 from pathlib import Path
 
@@ -33,23 +36,73 @@ from cryptography import x509
 from cryptography.hazmat.primitives import hashes
 from cryptography.hazmat.primitives.asymmetric.utils import Prehashed
 from cryptography.hazmat.primitives.serialization import Encoding, PublicFormat
-from infiniteidmanager import APDU_LIST, CONFIG
+from infiniteidmanager import APDU_LIST, CONFIG, aio
+from infiniteidmanager.cache import (
+    get_cached_certificate,
+    get_certificate_fingerprint,
+)
 from infiniteidmanager.connector import connect, send
+from infiniteidmanager.init import init
+from infiniteidmanager.install_params import (
+    PROFILES,
+    encode_install_parameters,
+)
+from infiniteidmanager.simulator import SimulatorConnection, start_simulator
 from infiniteidmanager.util import (
+    authenticate_with_pin,
     build_apdu,
     change_pin,
-    process_read_binary,
-    read_data_length_from_asn1,
+    get_card_counters,
+    get_card_status,
+    handle_pk_and_cert_init,
+    perform_batch_signature,
+    raw_to_der,
+    read_certificate,
+    renew_certificate,
     set_pin,
+    set_signature_format,
+    sign_document,
+    sign_with_pin,
     verify_pin,
 )
 
 
+@pytest.fixture(scope="session")
+def simulator_initialized():
+    """The simulator starts with a fresh applet, initialize it once the same
+    way as a physical card before running the tests."""
+    if CONFIG.get("CARD_BACKEND", "pcsc") != "simulator":
+        return
+    conn = connect()
+    select_main_applet_menu(conn)
+    if get_certificate_fingerprint(conn, "auth") is None:
+        init(conn)
+        handle_pk_and_cert_init(conn, CONFIG["NEXTCLOUD_ID"], "sign")
+    conn.disconnect()
+
+
 @pytest.fixture
-def conn():
+def conn(simulator_initialized):
     return connect()
 
 
+@pytest.fixture(scope="module")
+def small_profile_conn():
+    """A second simulator installed with the small profile, its RAM buffer
+    is shorter than a certificate and it has no extended APDUs."""
+    if CONFIG.get("CARD_BACKEND", "pcsc") != "simulator":
+        pytest.skip("needs CARD_BACKEND: simulator")
+    port = CONFIG["SIMULATOR_PORT"] + 1
+    process = start_simulator(
+        port, encode_install_parameters(PROFILES["small"]).hex()
+    )
+    conn = SimulatorConnection("localhost", port)
+    conn.extended = False
+    yield conn
+    conn.disconnect()
+    process.terminate()
+
+
 def select_main_applet_menu(conn):
     print("[>] Selecting main applet AID")
     send(conn, build_apdu(APDU_LIST["select_main_aid"]))
@@ -68,9 +121,12 @@ class TestWebEidAppCompatibility:
             public_key = public_key.export_key(format="DER")
 
             send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
-            cert_from_card = process_read_binary(
-                conn, read_data_length_from_asn1(conn), 128
+            cert_from_card = read_certificate(conn)
+
+            assert get_certificate_fingerprint(conn, operation) == (
+                sha256(bytes(cert_from_card)).digest()
             )
+            assert get_cached_certificate(conn, operation) == cert_from_card
 
             x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
 
@@ -95,6 +151,68 @@ class TestWebEidAppCompatibility:
                 algorithm=x509_cert.signature_hash_algorithm,  # type: ignore
             )
 
+    def test_card_status(self, conn):
+        select_main_applet_menu(conn)
+        status = get_card_status(conn)
+
+        for operation in ["auth", "sign"]:
+            public_key = send(
+                conn, build_apdu(APDU_LIST[f"get_{operation}_public_key"])
+            )
+            public_key = ECC.import_key(bytes(public_key), curve_name="p256")
+            assert status["public_keys"][operation] == (
+                public_key.export_key(format="DER")
+            )
+
+            assert status["certificate_lengths"][operation] == len(
+                get_cached_certificate(conn, operation)
+            )
+
+        for reference in ["admin", "auth", "sign"]:
+            retries = send(
+                conn, build_apdu(APDU_LIST[f"get_{reference}_pin_retries"])
+            )
+            assert status["pin_retries"][reference] == tuple(retries)
+
+    def test_card_counters(self, conn):
+        select_main_applet_menu(conn)
+        counters_before = get_card_counters(conn)
+
+        send(conn, build_apdu(APDU_LIST["select_auth_cert"]))
+        read_certificate(conn)
+        verify_pin(conn, CONFIG["USER_AUTH_PIN"], "auth")
+        send(
+            conn,
+            build_apdu(
+                APDU_LIST["internal_authenticate"],
+                data=list(sha256(b"counted").digest()),
+            ),
+        )
+
+        counters = get_card_counters(conn)
+        assert counters["signatures"][1] == (
+            counters_before["signatures"][1] + 1
+        )
+        assert counters["signatures"][2] == counters_before["signatures"][2]
+        assert counters["certificate_reads"] == (
+            counters_before["certificate_reads"] + 1
+        )
+        assert counters["session_apdus"] > counters_before["session_apdus"]
+
+    def test_renew_certificate(self, conn):
+        select_main_applet_menu(conn)
+
+        old_cert = get_cached_certificate(conn, "auth")
+        new_cert = renew_certificate(
+            conn, CONFIG["NEXTCLOUD_ID"], "auth", old_cert
+        )
+
+        send(conn, build_apdu(APDU_LIST["select_auth_cert"]))
+        assert read_certificate(conn) == new_cert
+        assert get_certificate_fingerprint(conn, "auth") == (
+            sha256(bytes(new_cert)).digest()
+        )
+
     def test_internal_authenticate(self, conn):
         select_main_applet_menu(conn)
         origin_hash = sha256(b"https://ria.ee").digest()
@@ -106,9 +224,7 @@ class TestWebEidAppCompatibility:
         verify_pin(conn, CONFIG["USER_AUTH_PIN"], "auth")
 
         send(conn, build_apdu(APDU_LIST["select_auth_cert"]))
-        cert_from_card = process_read_binary(
-            conn, read_data_length_from_asn1(conn), 128
-        )
+        cert_from_card = read_certificate(conn)
 
         x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
 
@@ -135,9 +251,7 @@ class TestWebEidAppCompatibility:
         verify_pin(conn, CONFIG["USER_SIGN_PIN"], "sign")
 
         send(conn, build_apdu(APDU_LIST["select_sign_cert"]))
-        cert_from_card = process_read_binary(
-            conn, read_data_length_from_asn1(conn), 128
-        )
+        cert_from_card = read_certificate(conn)
 
         x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
 
@@ -157,6 +271,167 @@ class TestWebEidAppCompatibility:
             ),
         )
 
+    def test_sign_with_pin(self, conn):
+        select_main_applet_menu(conn)
+        hash_to_be_signed = sha256(b"fake document").digest()
+
+        for operation, sign in [
+            ("auth", authenticate_with_pin),
+            ("sign", sign_with_pin),
+        ]:
+            send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
+            cert_from_card = read_certificate(conn)
+
+            x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
+
+            signature = sign(
+                conn,
+                CONFIG[f"USER_{operation.upper()}_PIN"],
+                hash_to_be_signed,
+            )
+
+            x509_cert.public_key().verify(  # type: ignore
+                signature=bytes(signature),
+                data=hash_to_be_signed,
+                signature_algorithm=(  # type: ignore
+                    ec.ECDSA(Prehashed(hashes.SHA256()))
+                ),
+            )
+
+            # PIN is reset after the signature
+            with pytest.raises(RuntimeError):
+                send(
+                    conn,
+                    build_apdu(
+                        APDU_LIST[
+                            "internal_authenticate"
+                            if operation == "auth"
+                            else "perform_signature"
+                        ],
+                        data=list(hash_to_be_signed),
+                    ),
+                )
+
+    def test_async_client(self, conn):
+        hashes_to_be_signed = [
+            sha256(f"fake document {i}".encode("utf-8")).digest()
+            for i in range(3)
+        ]
+
+        async def authenticate():
+            card = aio.AsyncCard(conn)
+            await card.select()
+            certificate = card.read_certificate("auth")
+            signatures = [
+                card.authenticate_with_pin(
+                    CONFIG["USER_AUTH_PIN"], hash_to_be_signed
+                )
+                for hash_to_be_signed in hashes_to_be_signed
+            ]
+
+            # the certificate is parsed while the card signs
+            public_key = x509.load_der_x509_certificate(
+                await certificate
+            ).public_key()
+            for hash_to_be_signed, signature in zip(
+                hashes_to_be_signed, signatures
+            ):
+                public_key.verify(  # type: ignore
+                    signature=bytes(await signature),
+                    data=hash_to_be_signed,
+                    signature_algorithm=(  # type: ignore
+                        ec.ECDSA(Prehashed(hashes.SHA256()))
+                    ),
+                )
+            await card.close()
+
+        asyncio.run(authenticate())
+
+    def test_create_batch_signature(self, conn):
+        select_main_applet_menu(conn)
+        precomputed_hashes = [
+            sha256(f"fake document {i}".encode("utf-8")).digest()
+            for i in range(10)
+        ]
+
+        verify_pin(conn, CONFIG["USER_SIGN_PIN"], "sign")
+
+        send(conn, build_apdu(APDU_LIST["select_sign_cert"]))
+        cert_from_card = read_certificate(conn)
+
+        x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
+
+        signatures = perform_batch_signature(conn, precomputed_hashes)
+
+        assert len(signatures) == len(precomputed_hashes)
+        for precomputed_hash, signature in zip(precomputed_hashes, signatures):
+            x509_cert.public_key().verify(  # type: ignore
+                signature=signature,
+                data=precomputed_hash,
+                signature_algorithm=(  # type: ignore
+                    ec.ECDSA(Prehashed(hashes.SHA256()))
+                ),
+            )
+
+    def test_raw_signature_format(self, conn):
+        select_main_applet_menu(conn)
+        hash_to_be_signed = sha256(b"fake document").digest()
+
+        for operation, sign in [
+            ("auth", authenticate_with_pin),
+            ("sign", sign_with_pin),
+        ]:
+            send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
+            cert_from_card = read_certificate(conn)
+
+            x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
+
+            set_signature_format(conn, operation, "raw")
+            try:
+                signatures = [
+                    sign(
+                        conn,
+                        CONFIG[f"USER_{operation.upper()}_PIN"],
+                        hash_to_be_signed,
+                    )
+                ]
+                if operation == "sign":
+                    verify_pin(conn, CONFIG["USER_SIGN_PIN"], "sign")
+                    signatures += perform_batch_signature(
+                        conn, [hash_to_be_signed] * 3, "raw"
+                    )
+            finally:
+                set_signature_format(conn, operation, "der")
+
+            for signature in signatures:
+                assert len(signature) == 64
+                x509_cert.public_key().verify(  # type: ignore
+                    signature=raw_to_der(signature),
+                    data=hash_to_be_signed,
+                    signature_algorithm=(  # type: ignore
+                        ec.ECDSA(Prehashed(hashes.SHA256()))
+                    ),
+                )
+
+    def test_sign_document(self, conn):
+        select_main_applet_menu(conn)
+        # longer than the card's RAM buffer, it is hashed on the card
+        document = os.urandom(5000)
+
+        send(conn, build_apdu(APDU_LIST["select_sign_cert"]))
+        cert_from_card = read_certificate(conn)
+
+        x509_cert = x509.load_der_x509_certificate(bytes(cert_from_card))
+
+        verify_pin(conn, CONFIG["USER_SIGN_PIN"], "sign")
+        signature = sign_document(conn, io.BytesIO(document))
+
+        x509_cert.public_key().verify(  # type: ignore
+            signature=bytes(signature),
+            data=document,
+            signature_algorithm=ec.ECDSA(hashes.SHA256()),  # type: ignore
+        )
+
     def test_auth_pin_manipulation(self, conn):
         select_main_applet_menu(conn)
 
@@ -245,3 +520,30 @@ class TestWebEidAppCompatibility:
                 CONFIG[f"USER_{operation.upper()}_PIN"],
                 operation,  # type: ignore
             )
+
+
+class TestSmallProfile:
+    def test_init_and_renew(self, small_profile_conn):
+        conn = small_profile_conn
+        init(conn)
+        handle_pk_and_cert_init(conn, CONFIG["NEXTCLOUD_ID"], "sign")
+
+        status = get_card_status(conn)
+        assert status["ram_buf_size"] == PROFILES["small"].ram_buf_size
+        for operation in ["auth", "sign"]:
+            send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
+            cert_from_card = read_certificate(conn)
+            # written by UPDATE BINARY, STORE CERTIFICATE cannot send it
+            assert len(cert_from_card) > status["ram_buf_size"]
+            assert (
+                status["certificate_lengths"][operation] == len(cert_from_card)
+            )
+            assert get_certificate_fingerprint(conn, operation) == (
+                sha256(bytes(cert_from_card)).digest()
+            )
+
+            renewed = renew_certificate(
+                conn, CONFIG["NEXTCLOUD_ID"], operation, cert_from_card
+            )
+            send(conn, build_apdu(APDU_LIST[f"select_{operation}_cert"]))
+            assert read_certificate(conn) == renewed